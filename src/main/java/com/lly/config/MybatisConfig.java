@@ -2,15 +2,26 @@ package com.lly.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.lly.utils.VoucherOrderSharding;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Collections;
+
 @Configuration
 public class MybatisConfig {
     @Bean
-    public MybatisPlusInterceptor mybatisPlusInterceptor() {
+    public MybatisPlusInterceptor mybatisPlusInterceptor(VoucherOrderSharding voucherOrderSharding) {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        //订单分表，要在分页插件之前替换表名
+        if (voucherOrderSharding.isSharded()) {
+            DynamicTableNameInnerInterceptor dynamicTableName = new DynamicTableNameInnerInterceptor();
+            dynamicTableName.setTableNameHandlerMap(Collections.singletonMap(
+                    VoucherOrderSharding.LOGIC_TABLE, voucherOrderSharding.tableNameHandler()));
+            interceptor.addInnerInterceptor(dynamicTableName);
+        }
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
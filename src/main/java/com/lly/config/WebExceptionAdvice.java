@@ -1,14 +1,29 @@
 package com.lly.config;
 
 import com.lly.dto.Result;
+import com.lly.utils.SeckillBusyException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import javax.servlet.http.HttpServletResponse;
+
 @Slf4j
 @RestControllerAdvice
 public class WebExceptionAdvice {
 
+    /*
+    * 秒杀过载，返回429，客户端可以稍后重试
+    * */
+    @ExceptionHandler(SeckillBusyException.class)
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    public Result handleSeckillBusyException(SeckillBusyException e, HttpServletResponse response) {
+        response.setHeader("Retry-After", "1");
+        return Result.fail(e.getMessage());
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public Result handleRuntimeException(RuntimeException e) {
         log.error(e.toString(), e);
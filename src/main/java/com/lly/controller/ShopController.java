@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.lly.dto.Result;
 import com.lly.entity.Shop;
 import com.lly.service.IShopService;
+import com.lly.utils.ShopBloomFilter;
 import com.lly.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -26,6 +27,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -45,6 +49,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器，否则新店铺会被当成不存在
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -1,14 +1,22 @@
 package com.lly.controller;
 
 
+import com.lly.dto.OrderStatusDTO;
 import com.lly.dto.Result;
 import com.lly.service.IVoucherOrderService;
+import com.lly.utils.UserHolder;
+import com.lly.utils.VoucherOrderStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.time.Duration;
 
 /**
  * <p>
@@ -23,8 +31,43 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderStatus voucherOrderStatus;
+
+    @Value("${seckill.order.status-poll-timeout:30s}")
+    private Duration statusPollTimeout;
+    /**
+     * 秒杀下单
+     * @param voucherId 优惠券id
+     * @param idempotencyKey 客户端重试时带上同一个值，返回第一次的结果
+     * @return 订单id
+     */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        return voucherOrderService.seckillVoucher(voucherId, idempotencyKey);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态，还在排队时长轮询，状态变化后立即返回
+     * @param orderId 订单id
+     * @return 订单状态
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        DeferredResult<Result> result = new DeferredResult<>(statusPollTimeout.toMillis());
+        OrderStatusDTO status = voucherOrderStatus.query(orderId, userId);
+        if (status == null) {
+            result.setResult(Result.fail(VoucherOrderStatus.STATUS_NOT_FOUND));
+            return result;
+        }
+        if (!VoucherOrderStatus.QUEUED.equals(status.getStatus())) {
+            result.setResult(Result.ok(status));
+            return result;
+        }
+        voucherOrderStatus.watch(orderId, userId, result);
+        return result;
     }
 }
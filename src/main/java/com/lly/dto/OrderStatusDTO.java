@@ -0,0 +1,17 @@
+package com.lly.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * QUEUED：已抢到，排队创建订单；CREATED：订单已创建；FAILED：创建失败
+     */
+    private String status;
+    private String reason;
+}
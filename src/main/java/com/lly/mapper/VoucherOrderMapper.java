@@ -2,6 +2,9 @@ package com.lly.mapper;
 
 import com.lly.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行INSERT IGNORE批量保存订单，一批订单只发一条SQL
+     * 主键或(user_id, voucher_id)唯一索引冲突的行会被忽略
+     * @param orders 订单列表
+     * @return 真正插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
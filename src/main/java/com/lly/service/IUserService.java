@@ -3,9 +3,11 @@ package com.lly.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.lly.dto.LoginFormDTO;
 import com.lly.dto.Result;
+import com.lly.dto.UserDTO;
 import com.lly.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -24,4 +26,9 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 批量查询用户公开信息，走缓存，结果按ids的顺序，不存在的跳过
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
 }
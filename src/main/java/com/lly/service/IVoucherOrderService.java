@@ -4,6 +4,8 @@ import com.lly.dto.Result;
 import com.lly.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-   void createVoucherOrder(VoucherOrder voucherOrder);
+    Result seckillVoucher(Long voucherId, String idempotencyKey);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    void handleVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    int countVoucherOrders(Long voucherId);
 }
@@ -1,6 +1,7 @@
 package com.lly.service;
 
 import com.lly.dto.Result;
+import com.lly.entity.SeckillVoucher;
 import com.lly.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -18,4 +19,8 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    void addSeckillStock(Long voucherId, Integer count);
+
+    void warmUpSeckillVoucher(SeckillVoucher seckillVoucher);
+
 }
@@ -1,6 +1,5 @@
 package com.lly.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.lly.dto.Result;
@@ -8,7 +7,6 @@ import com.lly.dto.ScrollResult;
 import com.lly.dto.UserDTO;
 import com.lly.entity.Blog;
 import com.lly.entity.Follow;
-import com.lly.entity.User;
 import com.lly.mapper.BlogMapper;
 import com.lly.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -24,7 +22,9 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.lly.utils.RedisConstants.BLOG_LIKED_KEY;
@@ -56,10 +56,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -141,14 +139,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2.解析其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",",ids);
-        //3.根据用户id查询用户，不要忘记隐藏敏感信息,WHERE id IN(5,1) ORDER BY FIELD(id,5,1)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id",ids)
-                .last("ORDER BY FIELD(id,"+idStr+")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //3.根据用户id查询用户，只有公开信息，先查缓存，按点赞顺序返回
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
 
 
         //4.返回
@@ -226,9 +218,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",",ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        //5.1 查询blog有关用户
+        queryBlogUsers(blogs);
         for (Blog blog:blogs) {
-            //5.1 查询blog有关用户
-            queryBlogUser(blog);
             //5.2 查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -241,9 +233,25 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    /*
+    * 一批笔记的作者一次查出来，不再每篇笔记查一次数据库
+    * */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
@@ -1,6 +1,5 @@
 package com.lly.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.lly.dto.Result;
 import com.lly.dto.UserDTO;
@@ -91,10 +90,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //3.解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
         //4.查询用户
-        List<UserDTO> users = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUserDTOs(ids);
         return Result.ok(users);
     }
 }
@@ -1,8 +1,7 @@
 package com.lly.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.lly.dto.Result;
@@ -26,9 +25,9 @@ import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.lly.utils.RedisConstants.*;
 
@@ -54,8 +53,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         /*Shop shop = cacheClient
                 .queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);*/
 
-        //互斥锁解决缓存击穿
-        //Shop shop = queryWithMutex(id);
+        //单飞加载解决缓存击穿
+        //Shop shop = queryWithSingleFlight(id);
         Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.SECONDS);
 
         //基于逻辑过期方式解决缓存击穿问题
@@ -67,121 +66,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /*
     * 基于逻辑过期方式解决缓存击穿问题
-    * 默认热key会提前加载进缓存
+    * 默认热key会提前加载进缓存，过期后由CacheClient抢锁异步重建
     * */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2.判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            //3.未命中，直接返回
-            return null;
-        }
-
-        //4.命中，需要先把json反序列化为对象
-        //redisData.getData()返回JSONObject
-        RedisData redisData = JSONUtil.toBean(shopJson,RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(),Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            //5.1 未过期，返回店铺信息
-            return shop;
-        }
-
-        //5.2 过期，需要缓存重建
-        //6.重建缓存
-
-        //6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-
-        //6.2 判断是否取锁成功
-        //获取锁成功应该再次检测redis缓存是否过期，做DoubleCheck，如果存在则无需重建缓存
-        if (isLock) {
-            //TODO 6.2.1 成功，开启独立线程，实现缓存重建，用线程池
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //重建缓存
-                    this.saveShop2Redis(id,20L);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
-
-        //6.2.2 失败，返回过期的商铺信息
-        return shop;
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
     /*
-    * 互斥锁解决缓存击穿
+    * 单飞加载解决缓存击穿
+    * 原来是互斥锁：抢不到锁就休眠50ms再递归重试，热点key过期时大量线程空转，还会各自再查一遍Redis
+    * 现在交给CacheClient的单飞加载：本节点同一个key只有一个线程查数据库，其它节点等加载完成的通知
     * */
-    public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        //判断命中的是否为空值，缓存为空但不是null，这是一个穿透的结果
-        if (shopJson != null) {
-            //返回一个错误信息
-            return null;
-        }
-
-        //TODO 4.实现缓存重建
-        //4.1获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-
-            //4.2判断是否获取成功
-            if (!isLock) {
-                //4.3失败，则休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            //4.4成功，根据id查询数据库，应该先看看缓存里有没有，有的话就不用再重建了
-            shop = getById(id);
-            //模拟重建的延时
-            Thread.sleep(200);
-            //5.不存在，返回错误
-            if (shop == null) {
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
-            }
-
-            //6.存在，写入redis，添加有效时间
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //7.释放互斥锁
-            unlock(lockKey);
-        }
-
-        //8.返回
-        return shop;
+    public Shop queryWithSingleFlight(Long id) {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /*
@@ -222,21 +120,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
-    /*
-    * 模拟添加互斥锁
-    * 通过setnx实现
-    * */
-    //获取锁
-    private  boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
-        //直接返回拆箱可能会返回null，所以借助工具类
-        return BooleanUtil.isTrue(flag);
-    }
-    //释放锁
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
-    }
-
     /*
     * 对于热key，预加载的方法
     * */
@@ -263,8 +146,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+shop.getId());
+        //2.删除缓存，各节点的本地缓存也一起删除
+        cacheClient.delete(CACHE_SHOP_KEY+shop.getId());
         return Result.ok();
     }
 
@@ -326,11 +209,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         });
 
-        //5. 根据id查询shop（要有序）
-        String idStr = StrUtil.join(",",ids);
-        List<Shop> shops = query().in("id",ids).last("ORDER BY FIELD(id,"+idStr+")").list();
-        for (Shop shop:shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        //5. 根据id查询shop（要有序），先一次MGET查缓存，未命中的一次IN查询
+        List<Shop> cached = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop:cached) {
+            //缓存里的对象可能是共享的，拷贝一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         //6. 返回
         return Result.ok(shops);
@@ -1,7 +1,6 @@
 package com.lly.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -11,6 +10,8 @@ import com.lly.dto.UserDTO;
 import com.lly.entity.User;
 import com.lly.mapper.UserMapper;
 import com.lly.service.IUserService;
+import com.lly.utils.CacheClient;
+import com.lly.utils.RedisHashCodec;
 import com.lly.utils.RegexUtils;
 import com.lly.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -23,10 +24,11 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.lly.utils.RedisConstants.*;
 import static com.lly.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -46,6 +48,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /*
     * 校验手机号格式后，生成验证码，发送验证码
     * 并以手机号为key将验证码存到redis中，
@@ -99,11 +104,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         String token = UUID.randomUUID().toString(true);
         //7.2将user对象转换为hashmap存储
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        //TODO 看不懂的操作
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO,new HashMap<>(),
-                CopyOptions.create()
-                        .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName,fieldValue)->fieldValue.toString()));
+        //StringRedisTemplate要求字段值都是字符串，null的字段不写
+        Map<String, String> userMap = RedisHashCodec.fromUserDTO(userDTO);
         //7.3 存储
         String tokenKey = LOGIN_USER_KEY+token;
         stringRedisTemplate.opsForHash().putAll(tokenKey,userMap);
@@ -195,4 +197,17 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         save(user);
         return user;
     }
+
+    /*
+    * 笔记作者、点赞用户、共同关注等列表都要按id查用户
+    * 一次MGET查缓存，未命中的一次IN查询，代替逐个getById、不走缓存的ORDER BY FIELD
+    * */
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
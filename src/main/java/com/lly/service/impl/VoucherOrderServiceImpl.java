@@ -1,34 +1,53 @@
 package com.lly.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.lly.dto.Result;
 import com.lly.entity.VoucherOrder;
 import com.lly.mapper.VoucherOrderMapper;
 import com.lly.service.ISeckillVoucherService;
 import com.lly.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.lly.utils.CacheClient;
-import com.lly.utils.RedisIdWorker;
+import com.lly.utils.LuaScriptRegistry;
+import com.lly.utils.RedisHashCodec;
+import com.lly.utils.IdGenerator;
+import com.lly.utils.SeckillBackpressure;
+import com.lly.utils.SeckillBusyException;
+import com.lly.utils.SeckillLocalState;
+import com.lly.utils.SeckillRateLimiter;
+import com.lly.utils.SeckillStockFlusher;
+import com.lly.utils.SeckillOrderStreams;
 import com.lly.utils.UserHolder;
+import com.lly.utils.VoucherOrderShardMigrator;
+import com.lly.utils.VoucherOrderSharding;
+import com.lly.utils.VoucherOrderStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.lly.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.lly.utils.RedisConstants.SECKILL_IDEMPOTENCY_KEY;
+import static com.lly.utils.RedisConstants.SECKILL_META_KEY;
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.lly.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -45,49 +64,149 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    //按前缀选择Redis自增或者本地雪花算法，见id.snowflake.prefixes
     @Resource
-    RedisIdWorker redisIdWorker;
+    IdGenerator idGenerator;
 
     @Resource
-    private CacheClient cacheClient;
+    private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private MeterRegistry meterRegistry;
+
+    //重复订单计数，Lua脚本已经保证一人一单，这里出现说明是消息重复投递
+    private Counter duplicateOrderCounter;
 
+    //seckill.lua由脚本注册中心统一加载，调用时走EVALSHA
     @Resource
-    private RedissonClient redissonClient;
-
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    //静态代码块只会执行一次，不会浪费IO资源
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    private LuaScriptRegistry luaScriptRegistry;
+
+
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Resource
+    private SeckillLocalState seckillLocalState;
+
+    @Resource
+    private VoucherOrderStatus voucherOrderStatus;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillStockFlusher seckillStockFlusher;
 
+    @Resource
+    private SeckillBackpressure seckillBackpressure;
+
+    @Resource
+    private VoucherOrderSharding voucherOrderSharding;
+
+    @Resource
+    private VoucherOrderShardMigrator voucherOrderShardMigrator;
+
+    //幂等键的有效期，覆盖客户端的重试时间就够了
+    @Value("${seckill.idempotency.ttl:10m}")
+    private Duration idempotencyTtl;
+
+    private static final int IDEMPOTENCY_KEY_MAX_LENGTH = 64;
+
+    /*
+    * 每个节点的消费者线程数，每个线程是消费者组里一个独立的消费者
+    * */
+    @Value("${seckill.order.consumers:1}")
+    private int consumers;
+
+    //线程池，每个消费者一个线程
+    private ExecutorService seckillOrderExecutor;
+
+    /*
+    * 每次XREADGROUP最多读取的订单条数，以及没有消息时最长阻塞等待的时间
+    * 有消息时Redis会立即返回已有的消息，所以高峰期自然就是满批
+    * */
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
 
-    //线程池(实际只有一个线程）
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Value("${seckill.order.max-wait:2s}")
+    private Duration maxWait;
 
-    String queueName = "stream.orders";
+    //关闭时等待消费者处理完手上这一批的最长时间
+    @Value("${seckill.order.shutdown-timeout:10s}")
+    private Duration shutdownTimeout;
+
+    private volatile boolean running = true;
 
     @PostConstruct//这个注解啥意思
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        duplicateOrderCounter = meterRegistry.counter("seckill.order.duplicate");
+        List<String> streamKeys = seckillOrderStreams.streamKeys();
+        //分区模式下一个分区只能由本节点的一个线程读取，否则同一用户的订单会被并发处理
+        int workers = streamKeys.size() > 1 ? Math.min(consumers, streamKeys.size()) : consumers;
+        if (workers < consumers) {
+            log.warn("消费者数{}大于分区数{}，只启动{}个消费者", consumers, streamKeys.size(), workers);
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            //分区p交给第 p % workers 个消费者
+            List<String> ownStreams = new ArrayList<>();
+            for (int p = 0; p < streamKeys.size(); p++) {
+                if (streamKeys.size() == 1 || p % workers == i) {
+                    ownStreams.add(streamKeys.get(p));
+                }
+            }
+            seckillOrderExecutor.submit(new VoucherOrderHandler(seckillOrderStreams.consumerName(i), ownStreams));
+        }
+    }
+
+    /*
+    * 先让消费者处理完手上的一批再退出，等它们真正结束之后，
+    * SeckillStockFlusher（被本类依赖，后于本类销毁）最后一次刷盘才不会漏掉关闭期间提交的扣减
+    * */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        //XREADGROUP最多阻塞maxWait
+        if (!seckillOrderExecutor.awaitTermination(maxWait.plus(shutdownTimeout).toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("订单消费者{}内没有退出，强制中断", maxWait.plus(shutdownTimeout));
+            seckillOrderExecutor.shutdownNow();
+            seckillOrderExecutor.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable{
 
+        private final Consumer consumer;
+
+        private final StreamOffset<String>[] lastConsumed;
+
+        @SuppressWarnings("unchecked")
+        VoucherOrderHandler(String consumerName, List<String> streamKeys) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+            this.lastConsumed = streamKeys.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+        }
 
         @Override
         public void run() {
-            while (true){
+            //订单还在往分表迁移（本节点的后台线程或者其它节点执行），先不消费，避免新订单和迁移交错写入分表
+            while (running && !voucherOrderShardMigrator.isMigrated()) {
+                log.info("等待订单迁移到分表完成");
                 try {
-                    //1.获取消息队列中的订单信息XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.orders >
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            while (running && !Thread.currentThread().isInterrupted()){
+                try {
+                    //1.批量获取自己负责的各分区的订单信息XREADGROUP GROUP g1 {node-id}-i COUNT n BLOCK 2000 STREAMS s1 s2 > >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(maxWait),
+                            lastConsumed
                     );
 
                     //2.判断消息获取是否成功
@@ -96,58 +215,60 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    //3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.创建订单
-                    handleVoucherOrder(voucherOrder);
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //3.整批创建订单并ACK
+                    handleVoucherOrderBatch(list);
 
                 } catch (Exception e) {
+                    //处理失败的消息留在pending-list里，由SeckillOrderReclaimer超时回收后退避重试
+                    //这里不再死循环重读pending-list，一条坏消息不会卡住整个消费者
                     log.error("处理订单异常",e);
-                    handlePendingList();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
 
             }
         }
     }
 
-    private void handlePendingList() {
-        while (true){
-            try {
-                //1.获取pending-list中的订单信息XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.orders 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-
-                //2.判断消息获取是否成功
-                if (list==null||list.isEmpty()){
-                    //2.1 如果获取失败，说明pending-list没有异常消息，继续下一次循环
-                    break;
-                }
-
-                //3.解析消息中的订单信息
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> values = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                //4.创建订单
-                handleVoucherOrder(voucherOrder);
-                //5. ACK确认 SACK stream.orders g1 id
-                stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-
-            } catch (Exception e) {
-                log.error("处理pending-list订单异常",e);
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
+    /*
+    * 一批消息每个优惠券只做一次多行INSERT、一次扣库存，每个分区只做一次XACK
+    * */
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        //1.解析消息中的订单信息，同时按分区收集消息id
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        Map<String, List<RecordId>> recordIds = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> values = record.getValue();
+            voucherOrders.add(RedisHashCodec.toVoucherOrder(values));
+            recordIds.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        //2.创建订单
+        handleVoucherOrders(voucherOrders);
+        //3. 每个分区整批ACK确认 XACK stream.orders.n g1 id1 id2 ...
+        for (Map.Entry<String, List<RecordId>> entry : recordIds.entrySet()) {
+            stringRedisTemplate.opsForStream().acknowledge(
+                    entry.getKey(), SECKILL_ORDER_GROUP, entry.getValue().toArray(new RecordId[0]));
+        }
+    }
 
+    @Override
+    public void handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //一人一单由lua脚本和(user_id, voucher_id)唯一索引保证，消费者不再加分布式锁
+        List<VoucherOrder> rejected = proxy.createVoucherOrders(voucherOrders);
+        //事务提交后再更新订单状态，唤醒正在等待结果的请求
+        if (rejected.isEmpty()) {
+            voucherOrderStatus.markCreated(voucherOrders);
+            return;
+        }
+        Set<Long> rejectedIds = rejected.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        voucherOrderStatus.markCreated(voucherOrders.stream()
+                .filter(o -> !rejectedIds.contains(o.getId()))
+                .collect(Collectors.toList()));
+        for (VoucherOrder voucherOrder : rejected) {
+            voucherOrderStatus.markFailed(voucherOrder.getId(), voucherOrder.getUserId(), "不能重复下单");
         }
     }
     /*
@@ -173,33 +294,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //现在这个线程是从线程池获得的一个全新的线程，所以不能从UserHolser获取userId了
-        //1.所以我们只能从voucherOrder中去取用户id
-        Long userId = voucherOrder.getUserId();
-        //2.创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //3.获取锁
-        boolean isLOck = lock.tryLock();
-        //4.判断是否获取锁成功
-        if (!isLOck){
-            //获取锁失败，返回错误或重试
-            //return Result.fail("不允许重复下单");
-            log.error("不允许重复下单");
-            return;
-        }
-        try{
-            /*//获取代理对象（事务）
-            现在这里是拿不到的，因为这个底层是通过线程去获取，当前线程是一个全新子线程
-            所以我们要提前在主线程获取
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();*/
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            lock.unlock();
-        }
-    }
-
     //为了让子线程拿到，放到成员变量
+    //消费者线程启动时可能还没有请求进来，所以直接注入自己的代理对象（懒加载，避免循环依赖）
+    @Lazy
+    @Resource
     IVoucherOrderService proxy;
 
 
@@ -209,33 +307,116 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        return seckillVoucher(voucherId, null);
+    }
+
+    /*
+    * 带幂等键的秒杀：客户端超时重试时带同一个Idempotency-Key
+    * 幂等键和lua脚本的结果一起原子写入，重试直接返回第一次的订单id和结果，不再生成id、不再执行脚本
+    * */
+    @Override
+    public Result seckillVoucher(Long voucherId, String idempotencyKey) {
+        String idempotencyRedisKey = null;
+        if (StrUtil.isNotBlank(idempotencyKey)) {
+            if (idempotencyKey.length() > IDEMPOTENCY_KEY_MAX_LENGTH) {
+                return Result.fail("Idempotency-Key不能超过" + IDEMPOTENCY_KEY_MAX_LENGTH + "个字符");
+            }
+            //按用户、优惠券隔离，不同用户或者同一个key用在别的优惠券上都不会拿到别人的结果
+            idempotencyRedisKey = SECKILL_IDEMPOTENCY_KEY + UserHolder.getUser().getId() + ":" + voucherId + ":" + idempotencyKey;
+            //重试要先查，第一次成功了但现在本地已经售罄，也要返回原来的订单
+            Result previous = previousResult(idempotencyRedisKey);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        //本地已经知道售罄了，直接返回，不访问Redis
+        if (seckillLocalState.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //本地判断秒杀时间，不在时间内直接返回
+        int window = seckillLocalState.checkTimeWindow(voucherId);
+        if (window!=SeckillLocalState.IN_TIME){
+            return Result.fail(window==SeckillLocalState.NOT_STARTED?"活动还没有开始":"活动已结束");
+        }
+        //订单积压超过高水位，直接返回429，降到低水位以下才恢复
+        if (seckillBackpressure.isOverloaded()){
+            throw new SeckillBusyException("下单人数过多，请稍后重试");
+        }
+        //准入限流，超出的请求不生成订单id、不执行lua脚本
+        if (!seckillRateLimiter.tryAcquire(voucherId)){
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
         //获取订单id
-        long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
+        long orderId = idGenerator.nextId("order");
+        //1.执行lua脚本，订单按userId写入对应分区的stream，脚本访问的key都通过KEYS传入
+        List<String> keys = new ArrayList<>(6);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.add(SECKILL_META_KEY + voucherId);
+        keys.add(seckillOrderStreams.streamKey(userId));
+        keys.add(ORDER_STATUS_KEY + orderId);
+        if (idempotencyRedisKey != null) {
+            keys.add(idempotencyRedisKey);
+        }
+        Long result = luaScriptRegistry.execute(
+                "seckill",
+                Long.class,
+                keys,
+                voucherId.toString(), userId.toString(),String.valueOf(orderId),
+                voucherOrderStatus.ttlSeconds(), idempotencyTtl.getSeconds()
         );
 
         //2.判断结果是否为0
         int r = result.intValue();
+        if (r==5){
+            //同一个幂等键的请求并发执行，另一个已经执行过脚本了
+            Result previous = previousResult(idempotencyRedisKey);
+            return previous != null ? previous : Result.fail("请求处理中，请稍后重试");
+        }
         if (r!=0){
             //2.1 不为0，没有购买资格
-            return Result.fail(r==1?"库存不足":"不能重复下单");
+            if (r==1){
+                //售罄，本地标记并通知其它节点
+                seckillLocalState.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
 
 
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //异步下单，开启独立线程，不断执行线程任务
+        //3.异步下单，消费者线程不断从stream中取订单
 
         //4.返回订单id
         return Result.ok(orderId);
 
     }
+    /*
+    * 幂等键里存的是 结果:订单id
+    * */
+    private Result previousResult(String idempotencyRedisKey) {
+        String value = stringRedisTemplate.opsForValue().get(idempotencyRedisKey);
+        if (value == null) {
+            return null;
+        }
+        int index = value.indexOf(':');
+        int r = Integer.parseInt(value.substring(0, index));
+        return r == 0 ? Result.ok(Long.valueOf(value.substring(index + 1))) : Result.fail(seckillFailMessage(r));
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case SeckillLocalState.NOT_STARTED:
+                return "活动还没有开始";
+            default:
+                return "活动已结束";
+        }
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         //获取用户
@@ -344,47 +525,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 */
     /*
-    * 创建订单添加而非修改，只能用悲观锁
-    * spring拿到当前对象的代理对象，然后拿的代理对象来做事务处理
+    * 批量创建订单，幂等，一个事务内完成：
+    * 1.按用户所在的分表、优惠券分组，每组一条 INSERT IGNORE，(user_id, voucher_id)唯一索引挡掉重复订单
+    * 2.每个优惠券按实际插入的行数扣减库存，事务提交后交给SeckillStockFlusher合并写回
+    * 不再先查询是否已下单，重复投递的消息直接被忽略，并记录到seckill.order.duplicate指标
+    * 返回被拒绝的订单：用户已经有另一个订单了（同一个订单重复投递不算被拒绝）
     * */
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder){
-        //6、一人一单
-        Long userId = voucherOrder.getUserId();
-        //6、1 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        //6.2 判断是否存在
-        if (count>0){
-            //用户已经购买过了
-            //return Result.fail("用户已经购买过一次了！");
-            log.error("用户已经购买过一次了！");
-            return;
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> rejected = new ArrayList<>();
+        Map<Long, Integer> insertedOfVoucher = new HashMap<>();
+        //1.按分表、优惠券分组
+        Map<Integer, Map<Long, List<VoucherOrder>>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(o -> voucherOrderSharding.shardOf(o.getUserId()),
+                        Collectors.groupingBy(VoucherOrder::getVoucherId)));
+        for (Map.Entry<Integer, Map<Long, List<VoucherOrder>>> shard : groups.entrySet()) {
+            for (Map.Entry<Long, List<VoucherOrder>> entry : shard.getValue().entrySet()) {
+                //2.在订单所在的分表上插入
+                int inserted = voucherOrderSharding.onShard(shard.getKey(),
+                        () -> insertVoucherOrders(entry.getKey(), entry.getValue(), rejected));
+                insertedOfVoucher.merge(entry.getKey(), inserted, Integer::sum);
+            }
         }
+        //3.扣减库存：事务提交后累加到stockFlusher，定时合并成一条 stock = stock - N 写回
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                insertedOfVoucher.forEach((voucherId, inserted) -> {
+                    if (inserted > 0) {
+                        seckillStockFlusher.add(voucherId, inserted);
+                    }
+                });
+            }
+        });
+        return rejected;
+    }
 
-        //5、扣减库存，这里怎么扣减，连数据库扣减吗
-        //voucher.setStock(voucher.getStock()-1);
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
-                .eq("voucher_id",voucherOrder.getVoucherId()).gt("stock",0)//where id = ？ and stock > 0;
-                .update();
-        if (!success){
-            //扣减失败
-            //return Result.fail("优惠价已经抢完了");
-            log.error("库存不足！");
-            return;
+    /*
+    * 多行INSERT IGNORE，返回真正插入的行数，被唯一索引拒绝的订单放进rejected
+    * */
+    private int insertVoucherOrders(Long voucherId, List<VoucherOrder> orders, List<VoucherOrder> rejected) {
+        int inserted = getBaseMapper().insertIgnoreBatch(orders);
+        int duplicates = orders.size() - inserted;
+        if (duplicates > 0) {
+            duplicateOrderCounter.increment(duplicates);
+            log.warn("忽略重复订单{}条 voucherId={}", duplicates, voucherId);
+            //很少发生，再查一次哪些订单id确实在库里，不在的就是被唯一索引拒绝的
+            List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            Set<Long> saved = query().select("id").in("id", ids).list().stream()
+                    .map(VoucherOrder::getId).collect(Collectors.toSet());
+            for (VoucherOrder voucherOrder : orders) {
+                if (!saved.contains(voucherOrder.getId())) {
+                    rejected.add(voucherOrder);
+                }
+            }
         }
+        return inserted;
+    }
 
-        /*//6、创建订单，订单的信息有哪些啊，怎么创建
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //6.1 订单id
-        Long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        //6.2 用户id
-
-        voucherOrder.setUserId(userId);
-        //6.3 代金卷id
-        voucherOrder.setVoucherId(voucherId);*/
-        save(voucherOrder);
-        //return Result.ok(orderId);
+    /*
+    * 某张优惠券的订单数，分表时要遍历所有分表
+    * */
+    @Override
+    public int countVoucherOrders(Long voucherId) {
+        int count = 0;
+        for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+            count += voucherOrderSharding.onShard(shard, () -> query().eq("voucher_id", voucherId).count());
+        }
+        return count;
     }
 }
@@ -1,20 +1,31 @@
 package com.lly.service.impl;
 
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.lly.dto.Result;
 import com.lly.entity.Voucher;
 import com.lly.mapper.VoucherMapper;
 import com.lly.entity.SeckillVoucher;
 import com.lly.service.ISeckillVoucherService;
+import com.lly.service.IVoucherOrderService;
 import com.lly.service.IVoucherService;
+import com.lly.utils.SeckillLocalState;
+import com.lly.utils.SeckillStockFlusher;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import static com.lly.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.lly.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -30,17 +41,38 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillLocalState seckillLocalState;
+
+    @Resource
+    private SeckillStockFlusher seckillStockFlusher;
+
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 先查缓存
+        String key = CACHE_VOUCHER_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            return Result.ok(JSONUtil.toList(json, Voucher.class));
+        }
+        // 查询优惠券信息，写入缓存
+        List<Voucher> vouchers = cacheVoucherOfShop(shopId);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    private List<Voucher> cacheVoucherOfShop(Long shopId) {
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        stringRedisTemplate.opsForValue().set(CACHE_VOUCHER_KEY + shopId, JSONUtil.toJsonStr(vouchers),
+                CACHE_VOUCHER_TTL, TimeUnit.MINUTES);
+        return vouchers;
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -54,7 +86,125 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到reids中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY +voucher.getId(),voucher.getStock().toString());
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //保存秒杀元数据到redis中，并更新本地的秒杀时间；新券还没有订单，总库存就是库存
+        saveSeckillMeta2Redis(seckillVoucher);
+        saveSeckillTotal2Redis(seckillVoucher, 0);
+        seckillLocalState.updateTimeWindow(voucher.getId(), toEpochMilli(voucher.getBeginTime()), toEpochMilli(voucher.getEndTime()));
+        //店铺的优惠券列表变了
+        stringRedisTemplate.delete(CACHE_VOUCHER_KEY + voucher.getShopId());
+    }
+
+    /*
+    * 秒杀开始前的预热，只补Redis里缺的，已经存在的库存和总库存不会被覆盖：
+    * 1.库存key不存在（Redis被清空过），按 总库存 - 已落库的订单数 重新写入，同时重写元数据
+    * 2.只有元数据或者total不存在，补写元数据、total
+    * 3.刷新店铺的优惠券列表缓存
+    * 总库存缺失时按 数据库库存 + 已落库的订单数 重建，数据库库存是卖剩下的，不能直接当总库存
+    * */
+    @Override
+    public void warmUpSeckillVoucher(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        //1.库存
+        boolean hasStock = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId));
+        boolean hasMeta = Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_META_KEY + voucherId));
+        if (!hasStock) {
+            int orders = voucherOrderService.countVoucherOrders(voucherId);
+            saveSeckillMeta2Redis(seckillVoucher);
+            long stock = Math.max(saveSeckillTotal2Redis(seckillVoucher, orders) - orders, 0);
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            //重新装了库存，各节点之前留下的售罄标记都要清掉
+            if (stock > 0) {
+                seckillLocalState.clearSoldOut(voucherId);
+            }
+            broadcastTimeWindow(seckillVoucher);
+        } else {
+            //2.元数据
+            if (!hasMeta) {
+                saveSeckillMeta2Redis(seckillVoucher);
+                broadcastTimeWindow(seckillVoucher);
+            }
+            //元数据在但是没有total（老的秒杀券），也补上
+            if (!stringRedisTemplate.opsForHash().hasKey(SECKILL_META_KEY + voucherId, "total")) {
+                saveSeckillTotal2Redis(seckillVoucher, voucherOrderService.countVoucherOrders(voucherId));
+            }
+        }
+        //3.优惠券列表缓存
+        Voucher voucher = getById(voucherId);
+        if (voucher != null) {
+            cacheVoucherOfShop(voucher.getShopId());
+        }
+    }
+
+    /*
+    * 元数据里的秒杀时间重写了，通知各节点更新本地的时间窗口
+    * */
+    private void broadcastTimeWindow(SeckillVoucher seckillVoucher) {
+        seckillLocalState.updateTimeWindow(seckillVoucher.getVoucherId(),
+                toEpochMilli(seckillVoucher.getBeginTime()), toEpochMilli(seckillVoucher.getEndTime()));
+    }
+
+    /*
+    * 秒杀券补库存，事务提交后再补到Redis里，并清除各节点的售罄标记
+    * */
+    @Override
+    @Transactional
+    public void addSeckillStock(Long voucherId, Integer count) {
+        //1.数据库加库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            throw new RuntimeException("秒杀券不存在");
+        }
+        Voucher voucher = getById(voucherId);
+        //2.Redis的改动放到事务提交之后，事务回滚时Redis里不会多出库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                //2.1 Redis加库存；总库存用于启动时重新计算数据库库存
+                stringRedisTemplate.opsForHash().increment(SECKILL_META_KEY + voucherId, "total", count);
+                stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+                //total变了，按新的total重算一次数据库库存，覆盖掉这之前按旧total写回的值
+                seckillStockFlusher.touch(voucherId);
+                //2.2 清除售罄标记
+                seckillLocalState.clearSoldOut(voucherId);
+                //2.3 优惠券列表缓存里有库存，删掉
+                if (voucher != null) {
+                    stringRedisTemplate.delete(CACHE_VOUCHER_KEY + voucher.getShopId());
+                }
+            }
+        });
+    }
+
+    /*
+    * 秒杀元数据 seckill:meta:{id}，lua脚本用它做校验，不用再查数据库
+    * begin/end：秒杀开始、结束时间（毫秒时间戳）
+    * limit：每人限购数量，目前订单集合只支持一人一单
+    * total：总库存，见saveSeckillTotal2Redis
+    * */
+    private void saveSeckillMeta2Redis(SeckillVoucher seckillVoucher) {
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        meta.put("limit", "1");
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + seckillVoucher.getVoucherId(), meta);
+    }
+
+    /*
+    * 元数据的total字段：发布过的总库存，只在不存在时写入 数据库库存 + 已落库的订单数
+    * 已有的total是发布和补库存时累加出来的，不能被卖剩下的库存覆盖
+    * 返回Redis里的total
+    * */
+    private long saveSeckillTotal2Redis(SeckillVoucher seckillVoucher, int orders) {
+        String key = SECKILL_META_KEY + seckillVoucher.getVoucherId();
+        stringRedisTemplate.opsForHash().putIfAbsent(key, "total", String.valueOf(seckillVoucher.getStock() + orders));
+        return Long.parseLong(stringRedisTemplate.opsForHash().get(key, "total").toString());
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     /*
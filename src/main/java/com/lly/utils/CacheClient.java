@@ -1,17 +1,48 @@
 package com.lly.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import static com.lly.utils.RedisConstants.*;
@@ -21,13 +52,231 @@ import static com.lly.utils.RedisConstants.*;
 public class CacheClient {
     
     private final StringRedisTemplate stringRedisTemplate;
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final MeterRegistry meterRegistry;
+    private final LuaScriptRegistry luaScriptRegistry;
+
+    /*
+    * 本地一级缓存（L1），放在Redis（L2）前面，热点数据不用再访问Redis、反序列化JSON
+    * 按JSON长度估算占用，总量有上限；每条数据各自过期，空值也缓存，过期时间更短
+    * 删除缓存时通过Redis发布订阅通知所有节点删除本地缓存
+    * 本地缓存的对象是共享的，调用方不要修改返回的对象
+    * */
+    @Value("${cache.l1.enabled:false}")
+    private boolean l1Enabled;
+
+    @Value("${cache.l1.max-bytes:33554432}")
+    private long l1MaxBytes;
+
+    @Value("${cache.l1.ttl:30s}")
+    private Duration l1Ttl;
+
+    @Value("${cache.l1.null-ttl:5s}")
+    private Duration l1NullTtl;
+
+    private Cache<String, L1Entry> l1;
+
+    /*
+    * 缓存未命中时合并查询：本节点同一个key只有一个线程查数据库，其它线程等它的结果
+    * 开启distributed后，还要先抢Redis锁，抢不到的节点订阅加载完成的通知，最多等wait，再读一次Redis
+    * 持锁节点挂了或者超时了，就自己查数据库
+    * */
+    @Value("${cache.single-flight.distributed:true}")
+    private boolean distributedSingleFlight;
+
+    @Value("${cache.single-flight.wait:300ms}")
+    private Duration singleFlightWait;
+
+    @Value("${cache.single-flight.lock-ttl:10s}")
+    private Duration singleFlightLockTtl;
+
+    //本节点正在加载的key -> 加载结果
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    //等其它节点加载完成通知的key
+    private final Map<String, CompletableFuture<Void>> remoteLoading = new ConcurrentHashMap<>();
+    //加载锁的值，区分不同的JVM
+    private final String owner = UUID.randomUUID().toString(true);
+
+    private Counter dbLoads;
+    private Counter coalescedLoads;
+    private Counter remoteLoads;
+
+    //keyPrefix -> 这一类id的布隆过滤器
+    private final Map<String, BloomGuard> bloomGuards = new ConcurrentHashMap<>();
+
+    //各层的命中、未命中次数
+    private final AtomicLong l1Hits = new AtomicLong();
+    private final AtomicLong l1Misses = new AtomicLong();
+    private final AtomicLong l2Hits = new AtomicLong();
+    private final AtomicLong l2Misses = new AtomicLong();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       MeterRegistry meterRegistry,
+                       LuaScriptRegistry luaScriptRegistry){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        registerHitMeters("l1", l1Hits, l1Misses);
+        registerHitMeters("l2", l2Hits, l2Misses);
+        //查数据库、等本节点其它线程、等其它节点的次数
+        dbLoads = meterRegistry.counter("cache.load", "source", "db");
+        coalescedLoads = meterRegistry.counter("cache.load", "source", "coalesced");
+        remoteLoads = meterRegistry.counter("cache.load", "source", "remote");
+        if (distributedSingleFlight) {
+            //其它节点加载完成，唤醒本节点等待的加载
+            redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+                CompletableFuture<Void> notified =
+                        remoteLoading.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+                if (notified != null) {
+                    notified.complete(null);
+                }
+            }, new ChannelTopic(CACHE_LOADED_CHANNEL));
+        }
+        if (!l1Enabled) {
+            return;
+        }
+        l1 = Caffeine.newBuilder()
+                .maximumWeight(l1MaxBytes)
+                .weigher((String key, L1Entry entry) -> key.length() + entry.weight)
+                .expireAfter(new Expiry<String, L1Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, L1Entry entry, long currentTime) {
+                        return entry.ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, L1Entry entry, long currentTime, long currentDuration) {
+                        return entry.ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, L1Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+        Gauge.builder("cache.l1.size", l1, Cache::estimatedSize).register(meterRegistry);
+        //其它节点删除了缓存，本地也删掉
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> l1.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    private void registerHitMeters(String tier, AtomicLong hits, AtomicLong misses) {
+        FunctionCounter.builder("cache.requests", hits, AtomicLong::get)
+                .tag("tier", tier).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("cache.requests", misses, AtomicLong::get)
+                .tag("tier", tier).tag("result", "miss").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", () -> {
+                    long h = hits.get();
+                    long total = h + misses.get();
+                    return total == 0 ? 0 : (double) h / total;
+                })
+                .tag("tier", tier).register(meterRegistry);
+    }
+
+    /*
+    * 一个keyPrefix的布隆过滤器和它的统计
+    * rejected：过滤器判断不存在、直接返回的次数
+    * passedNull：过滤器放行了但实际不存在的次数，就是误判
+    * */
+    private static class BloomGuard {
+        private volatile IdBloomFilter filter;
+        //建过滤器时见过的最大id，更大的id是之后新增的，过滤器不一定有，不拦截
+        private volatile long maxId;
+        private final Counter rejected;
+        private final Counter passedNull;
+
+        BloomGuard(Counter rejected, Counter passedNull) {
+            this.rejected = rejected;
+            this.passedNull = passedNull;
+        }
+    }
+
+    /**
+     * 为keyPrefix注册布隆过滤器，重建后再次注册会替换掉旧的
+     * queryWithPassThrough查询这个前缀时，不超过maxId、过滤器又判断不存在的id不再访问Redis和数据库
+     * @param maxId 建过滤器时读到的最大id，之后新增的id都比它大，照常查Redis和数据库，不依赖新增通知
+     */
+    public void registerBloomFilter(String keyPrefix, IdBloomFilter filter, long maxId) {
+        BloomGuard guard = bloomGuards.computeIfAbsent(keyPrefix, prefix -> {
+            BloomGuard guard = new BloomGuard(
+                    meterRegistry.counter("cache.bloom.rejected", "prefix", prefix),
+                    meterRegistry.counter("cache.bloom.false-positive", "prefix", prefix));
+            //按元素个数估算的误判率
+            Gauge.builder("cache.bloom.expected-fpp", guard, g -> g.filter == null ? 0 : g.filter.expectedFpp())
+                    .tag("prefix", prefix).register(meterRegistry);
+            //实际观察到的误判率：不存在的id里被放行的比例
+            Gauge.builder("cache.bloom.observed-fpp", guard, g -> {
+                        double passed = g.passedNull.count();
+                        double total = passed + g.rejected.count();
+                        return total == 0 ? 0 : passed / total;
+                    })
+                    .tag("prefix", prefix).register(meterRegistry);
+            return guard;
+        });
+        //先换过滤器再换maxId，读的时候反过来，读到新的maxId就一定能读到新的过滤器
+        guard.filter = filter;
+        guard.maxId = maxId;
+    }
+
+    /*
+    * 这个id是否归布隆过滤器判断：有过滤器、是数字id、不超过maxId
+    * */
+    private static boolean bloomCovers(BloomGuard guard, Object id) {
+        return guard != null && guard.filter != null && id instanceof Number && ((Number) id).longValue() <= guard.maxId;
+    }
+
+    /*
+    * 布隆过滤器是否确定这个id不存在
+    * */
+    private static boolean bloomRejects(BloomGuard guard, Object id) {
+        return bloomCovers(guard, id) && !guard.filter.mightContain(((Number) id).longValue());
+    }
+
+    /*
+    * 本地缓存的一条数据，value为null表示空值
+    * */
+    private static class L1Entry {
+        private final Object value;
+        private final int weight;
+        private final long ttlNanos;
+
+        L1Entry(Object value, int weight, long ttlNanos) {
+            this.value = value;
+            this.weight = weight;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    private void putL1(String key, Object value, int weight, long ttlNanos) {
+        if (l1 != null) {
+            l1.put(key, new L1Entry(value, weight, ttlNanos));
+        }
     }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
     }
 
+    /**
+     * 删除缓存，同时通知所有节点删除本地缓存
+     * 本节点没开本地缓存也要通知，其它节点可能开了
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (l1 != null) {
+            l1.invalidate(key);
+        }
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
         //设置逻辑过期
         RedisData redisData = new RedisData();
@@ -41,40 +290,275 @@ public class CacheClient {
     * 解决缓存穿透
     * */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit){
+        BloomGuard guard = bloomGuards.get(keyPrefix);
+        if (!bloomCovers(guard, id)) {
+            return query(keyPrefix, id, type, dbFallback, time, unit);
+        }
+        //布隆过滤器判断不存在就一定不存在，不查Redis和数据库，也不用缓存空值
+        if (bloomRejects(guard, id)) {
+            guard.rejected.increment();
+            return null;
+        }
+        R r = query(keyPrefix, id, type, dbFallback, time, unit);
+        if (r == null) {
+            guard.passedNull.increment();
+        }
+        return r;
+    }
+
+    private <R,ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        //0.先查本地缓存，空值也算命中
+        if (l1 != null) {
+            L1Entry entry = l1.getIfPresent(key);
+            if (entry != null) {
+                l1Hits.incrementAndGet();
+                return type.cast(entry.value);
+            }
+            l1Misses.incrementAndGet();
+        }
+        //本地缓存的有效期不超过Redis的
+        long l1TtlNanos = Math.min(l1Ttl.toNanos(), unit.toNanos(time));
         //1.从redis查询商铺缓存
         String json = stringRedisTemplate.opsForValue().get(key);
 
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(json)){
+        //2.判断是否存在，空字符串是缓存的空值
+        if (json!=null){
             //3.存在，直接返回
-            return JSONUtil.toBean(json,type);
+            l2Hits.incrementAndGet();
+            return fromJson(key, json, type, l1TtlNanos);
         }
+        l2Misses.incrementAndGet();
 
-        //判断命中的是否为空值，缓存为空但不是null
-        if (json!=null){
-            //返回一个错误信息
+        //4.不存在，同一个key只有一个线程去查数据库
+        return load(key, id, type, dbFallback, time, unit, l1TtlNanos);
+    }
+
+    /*
+    * 单飞加载：抢到的线程加载，其它线程等同一个future
+    * */
+    private <R,ID> R load(String key, ID id, Class<R> type, Function<ID,R> dbFallback,
+                          Long time, TimeUnit unit, long l1TtlNanos) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            //1.已经有线程在加载，等它的结果
+            coalescedLoads.increment();
+            try {
+                return type.cast(existing.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            //2.自己加载
+            R r = distributedSingleFlight
+                    ? loadWithLock(key, id, type, dbFallback, time, unit, l1TtlNanos)
+                    : loadFromDb(key, id, dbFallback, time, unit, l1TtlNanos);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /*
+    * 集群内合并：抢到Redis锁的节点查数据库，其它节点等加载完成的通知后读Redis
+    * */
+    private <R,ID> R loadWithLock(String key, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                  Long time, TimeUnit unit, long l1TtlNanos) {
+        String lockKey = LOCK_CACHE_LOAD_KEY + key;
+        //1.先登记等待再抢锁，避免抢锁失败之后才登记，错过了通知
+        CompletableFuture<Void> notified = remoteLoading.computeIfAbsent(key, k -> new CompletableFuture<>());
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, owner, singleFlightLockTtl.toMillis(), TimeUnit.MILLISECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            //2.别的节点在加载，等它的通知
+            try {
+                notified.get(singleFlightWait.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                log.debug("等待缓存加载通知超时 key={}", key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                remoteLoading.remove(key, notified);
+            }
+            //3.再查一次Redis，加载好了直接用
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                remoteLoads.increment();
+                return fromJson(key, json, type, l1TtlNanos);
+            }
+            //4.还没加载好（持锁节点可能挂了），自己查数据库
+            return loadFromDb(key, id, dbFallback, time, unit, l1TtlNanos);
+        }
+        remoteLoading.remove(key, notified);
+        try {
+            //5.拿到锁，DoubleCheck，别的节点可能刚加载完
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return fromJson(key, json, type, l1TtlNanos);
+            }
+            return loadFromDb(key, id, dbFallback, time, unit, l1TtlNanos);
+        } finally {
+            //6.释放锁，通知其它节点
+            luaScriptRegistry.execute("unlock", Long.class, Collections.singletonList(lockKey), owner);
+            stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+        }
+    }
+
+    /*
+    * Redis里的json转成对象，空字符串是空值，顺便放进本地缓存
+    * */
+    private <R> R fromJson(String key, String json, Class<R> type, long l1TtlNanos) {
+        if (StrUtil.isBlank(json)) {
+            putL1(key, null, 0, l1NullTtl.toNanos());
             return null;
         }
+        R r = JSONUtil.toBean(json, type);
+        putL1(key, r, json.length(), l1TtlNanos);
+        return r;
+    }
 
-        //4.不存在，根据id查询数据库
+    private <R,ID> R loadFromDb(String key, ID id, Function<ID,R> dbFallback,
+                                Long time, TimeUnit unit, long l1TtlNanos) {
+        //4.根据id查询数据库
+        dbLoads.increment();
         R r = dbFallback.apply(id);
 
         //5.不存在，返回错误
         if (r==null){
             //将空值写入redis
             stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            putL1(key, null, 0, l1NullTtl.toNanos());
             //返回错误信息
             return null;
         }
 
         //6.存在，写入redis，添加有效时间
-        this.set(key,r,time,unit);
+        String json = JSONUtil.toJsonStr(r);
+        stringRedisTemplate.opsForValue().set(key,json,time,unit);
+        putL1(key, r, json.length(), l1TtlNanos);
 
         //7.返回
         return r;
     }
 
+    /**
+     * 批量查询，结果按ids的顺序返回，不存在的跳过
+     * 1.布隆过滤器、本地缓存 2.剩下的一次MGET 3.Redis未命中的一次批量查数据库 4.pipeline写回Redis，不存在的写空值
+     * 批量查询不做单飞合并，未命中的一批只查一次数据库
+     * 返回的对象可能是本地缓存里共享的，调用方要修改的话先拷贝一份
+     * @param dbBatchFallback 批量查数据库，返回 id -> 数据，查不到的id不用放
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                     Function<List<ID>, Map<ID,R>> dbBatchFallback, Long time, TimeUnit unit) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long l1TtlNanos = Math.min(l1Ttl.toNanos(), unit.toNanos(time));
+        BloomGuard guard = bloomGuards.get(keyPrefix);
+        //id -> 结果，value为null表示确定不存在
+        Map<ID, R> values = new HashMap<>(ids.size() * 2);
+        Set<ID> rejected = new HashSet<>();
+        List<ID> pending = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            //1.1 布隆过滤器判断不存在
+            if (bloomRejects(guard, id)) {
+                guard.rejected.increment();
+                rejected.add(id);
+                values.put(id, null);
+                continue;
+            }
+            //1.2 本地缓存
+            if (l1 != null) {
+                L1Entry entry = l1.getIfPresent(keyPrefix + id);
+                if (entry != null) {
+                    l1Hits.incrementAndGet();
+                    values.put(id, type.cast(entry.value));
+                    continue;
+                }
+                l1Misses.incrementAndGet();
+            }
+            pending.add(id);
+        }
+
+        if (!pending.isEmpty()) {
+            //2.一次MGET
+            List<String> keys = new ArrayList<>(pending.size());
+            for (ID id : pending) {
+                keys.add(keyPrefix + id);
+            }
+            List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+            List<ID> misses = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                String json = jsons == null ? null : jsons.get(i);
+                if (json != null) {
+                    l2Hits.incrementAndGet();
+                    values.put(pending.get(i), fromJson(keys.get(i), json, type, l1TtlNanos));
+                } else {
+                    l2Misses.incrementAndGet();
+                    misses.add(pending.get(i));
+                }
+            }
+            //3.未命中的一次查数据库
+            if (!misses.isEmpty()) {
+                values.putAll(loadBatchFromDb(keyPrefix, misses, dbBatchFallback, time, unit, l1TtlNanos));
+            }
+        }
+
+        //4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = values.get(id);
+            if (r != null) {
+                result.add(r);
+            } else if (bloomCovers(guard, id) && !rejected.contains(id)) {
+                guard.passedNull.increment();
+            }
+        }
+        return result;
+    }
+
+    private <R,ID> Map<ID, R> loadBatchFromDb(String keyPrefix, List<ID> misses, Function<List<ID>, Map<ID,R>> dbBatchFallback,
+                                              Long time, TimeUnit unit, long l1TtlNanos) {
+        dbLoads.increment();
+        Map<ID, R> loaded = dbBatchFallback.apply(misses);
+        Map<ID, R> values = new HashMap<>(misses.size() * 2);
+        Map<String, String> writes = new HashMap<>(misses.size() * 2);
+        for (ID id : misses) {
+            String key = keyPrefix + id;
+            R r = loaded == null ? null : loaded.get(id);
+            values.put(id, r);
+            if (r == null) {
+                //不存在，写空值
+                writes.put(key, "");
+                putL1(key, null, 0, l1NullTtl.toNanos());
+            } else {
+                String json = JSONUtil.toJsonStr(r);
+                writes.put(key, json);
+                putL1(key, r, json.length(), l1TtlNanos);
+            }
+        }
+        //一次pipeline写回，空值和数据的有效期不同
+        Expiration ttl = Expiration.from(time, unit);
+        Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                connection.stringCommands().set(
+                        write.getKey().getBytes(StandardCharsets.UTF_8),
+                        write.getValue().getBytes(StandardCharsets.UTF_8),
+                        write.getValue().isEmpty() ? nullTtl : ttl,
+                        RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        return values;
+    }
+
     //线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
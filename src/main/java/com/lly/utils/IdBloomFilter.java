@@ -0,0 +1,79 @@
+package com.lly.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* 本地布隆过滤器，只存long类型的id
+* 按预计元素个数n和误判率p计算位数 m = -n*ln(p)/(ln2)^2，哈希次数 k = m/n*ln2
+* 用两次64位混淆做双重哈希，第i个位置是 h1 + i*h2
+* 只能加不能删，删除的数据靠定期重建清掉
+* */
+public class IdBloomFilter {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashes;
+    //加入过的次数，重复加入也算，用来估算当前误判率
+    private final LongAdder insertions = new LongAdder();
+
+    public IdBloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expectedInsertions必须大于0，fpp必须在0和1之间");
+        }
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) ((bits + 63) >>> 6);
+        this.words = new AtomicLongArray(wordCount);
+        this.bitSize = (long) wordCount << 6;
+        this.hashes = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+    }
+
+    public void add(long id) {
+        long h1 = mix(id + GOLDEN_GAMMA);
+        long h2 = mix(h1 + GOLDEN_GAMMA);
+        for (int i = 0; i < hashes; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            while (((old = words.get(word)) & mask) == 0 && !words.compareAndSet(word, old, old | mask)) {
+                //CAS失败重试
+            }
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id + GOLDEN_GAMMA);
+        long h2 = mix(h1 + GOLDEN_GAMMA);
+        for (int i = 0; i < hashes; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * 按已加入的元素个数估算的误判率 (1 - e^(-k*n/m))^k
+    * */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-hashes * (double) insertions.sum() / bitSize), hashes);
+    }
+
+    public long insertions() {
+        return insertions.sum();
+    }
+
+    /*
+    * splitmix64的混淆函数，输入先加上GOLDEN_GAMMA，id为0时也能散开
+    * */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,16 @@
+package com.lly.utils;
+
+/*
+* 全局唯一id生成器，按业务前缀生成
+* RedisIdWorker：Redis自增序列号；SnowflakeIdGenerator：本地雪花算法
+* 业务代码注入IdGenerator，由IdGeneratorRouter按前缀选择实现
+* */
+public interface IdGenerator {
+
+    /**
+     * 生成id
+     * @param keyPrefix 业务前缀，比如order
+     * @return 全局唯一的64位id
+     */
+    long nextId(String keyPrefix);
+}
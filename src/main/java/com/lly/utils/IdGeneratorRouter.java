@@ -0,0 +1,45 @@
+package com.lly.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+* 按业务前缀选择id生成器，注入IdGenerator拿到的就是它
+* id.snowflake.prefixes里的前缀用本地雪花算法，其它的仍然用Redis自增
+* 两种id的取值范围不重叠（雪花id的第62位为1），同一前缀在两者之间切换不会生成重复id
+* */
+@Primary
+@Component
+public class IdGeneratorRouter implements IdGenerator {
+
+    @Value("${id.snowflake.prefixes:}")
+    private String prefixes;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    private final Set<String> snowflakePrefixes = new HashSet<>();
+
+    @PostConstruct
+    private void init() {
+        snowflakePrefixes.addAll(StrUtil.splitTrim(prefixes, ','));
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        if (snowflakePrefixes.contains(keyPrefix)) {
+            return snowflakeIdGenerator.nextId(keyPrefix);
+        }
+        return redisIdWorker.nextId(keyPrefix);
+    }
+}
@@ -0,0 +1,164 @@
+package com.lly.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+* 统一管理classpath下所有的lua脚本
+* 启动时SCRIPT LOAD到Redis，调用时只发送SHA（EVALSHA），Redis重启丢了脚本缓存（NOSCRIPT）时自动重新加载
+* 每个脚本的调用次数和耗时分布记录在redis.lua.script指标里，可以在/actuator/metrics查看
+* */
+@Slf4j
+@Component
+public class LuaScriptRegistry {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, LuaScript> scripts = new ConcurrentHashMap<>();
+
+    public LuaScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    private static class LuaScript {
+        private final String name;
+        private final byte[] body;
+        private final String sha;
+        private final Timer timer;
+
+        LuaScript(String name, byte[] body, String sha, Timer timer) {
+            this.name = name;
+            this.body = body;
+            this.sha = sha;
+            this.timer = timer;
+        }
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        //1.加载classpath根目录下所有的*.lua，脚本名就是文件名
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath*:*.lua");
+        for (Resource resource : resources) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            byte[] body;
+            try (InputStream in = resource.getInputStream()) {
+                body = StreamUtils.copyToByteArray(in);
+            }
+            String sha = SecureUtil.sha1().digestHex(body);
+            Timer timer = Timer.builder("redis.lua.script")
+                    .tag("script", name)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            scripts.put(name, new LuaScript(name, body, sha, timer));
+        }
+        //2.预加载到Redis，集群模式下lettuce会把SCRIPT LOAD广播到所有节点
+        for (LuaScript script : scripts.values()) {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> load(connection, script));
+            log.debug("lua脚本已加载 name={}, sha={}", script.name, script.sha);
+        }
+    }
+
+    private String load(RedisConnection connection, LuaScript script) {
+        return connection.scriptingCommands().scriptLoad(script.body);
+    }
+
+    /**
+     * 以EVALSHA的方式执行脚本
+     * @param name 脚本名（文件名去掉.lua）
+     * @param resultType 返回值类型，Long、Boolean、String或List
+     * @param keys KEYS
+     * @param args ARGV
+     * @return 脚本返回值，字符串会从byte[]转成String
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        LuaScript script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在：" + name);
+        }
+        //1.组装KEYS和ARGV
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (Object arg : args) {
+            keysAndArgs[i++] = String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+        }
+        ReturnType returnType = ReturnType.fromJavaType(resultType);
+        //2.执行并计时
+        long start = System.nanoTime();
+        try {
+            Object result = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    evalSha(connection, script, returnType, keys.size(), keysAndArgs));
+            return resultType.cast(deserialize(result));
+        } finally {
+            script.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Object evalSha(RedisConnection connection, LuaScript script, ReturnType returnType,
+                           int numKeys, byte[][] keysAndArgs) {
+        try {
+            return connection.scriptingCommands().evalSha(script.sha, returnType, numKeys, keysAndArgs);
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            //Redis重启或者切换了节点，脚本缓存没了，重新加载后再执行
+            log.warn("lua脚本缓存丢失，重新加载 name={}", script.name);
+            load(connection, script);
+            return connection.scriptingCommands().evalSha(script.sha, returnType, numKeys, keysAndArgs);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object deserialize(Object result) {
+        if (result instanceof byte[]) {
+            return new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        if (result instanceof List) {
+            List<?> list = (List<?>) result;
+            List<Object> values = new ArrayList<>(list.size());
+            for (Object value : list) {
+                values.add(deserialize(value));
+            }
+            return values;
+        }
+        return result;
+    }
+}
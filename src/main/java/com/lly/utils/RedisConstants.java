@@ -11,10 +11,38 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    //店铺的优惠券列表里有秒杀库存，缓存时间短一些
+    public static final Long CACHE_VOUCHER_TTL = 1L;
+    public static final String CACHE_VOUCHER_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String SHOP_BLOOM_CHANNEL = "cache:bloom:shop";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    //CacheClient单飞加载的锁，后面拼缓存key
+    public static final String LOCK_CACHE_LOAD_KEY = "lock:load:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_META_CHANNEL = "seckill:meta";
+    public static final String SECKILL_IDEMPOTENCY_KEY = "seckill:idem:";
+    public static final String SECKILL_WARM_UP_KEY = "seckill:warmup:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_UNTIL_KEY = "id:worker:until:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -0,0 +1,94 @@
+package com.lly.utils;
+
+import com.lly.dto.UserDTO;
+import com.lly.entity.VoucherOrder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+* 手写的Redis Hash/Stream字段编解码，替代BeanUtil.fillBeanWithMap、beanToMap
+* 订单消息和登录用户每次请求都要转换，hutool的反射拷贝分配太多
+* 字段名和原来BeanUtil使用的属性名一致，新旧数据可以互相读取；不认识的字段忽略
+* 实体加字段时这里要一起改
+* */
+public class RedisHashCodec {
+
+    private RedisHashCodec() {
+    }
+
+    /**
+     * stream.orders消息 -> 订单，消息里只有id、userId、voucherId
+     */
+    public static VoucherOrder toVoucherOrder(Map<?, ?> values) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            switch (entry.getKey().toString()) {
+                case "id":
+                    voucherOrder.setId(parseLong(value));
+                    break;
+                case "userId":
+                    voucherOrder.setUserId(parseLong(value));
+                    break;
+                case "voucherId":
+                    voucherOrder.setVoucherId(parseLong(value));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return voucherOrder;
+    }
+
+    /**
+     * login:token:{token} -> 登录用户
+     */
+    public static UserDTO toUserDTO(Map<?, ?> values) {
+        UserDTO userDTO = new UserDTO();
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            switch (entry.getKey().toString()) {
+                case "id":
+                    userDTO.setId(parseLong(value));
+                    break;
+                case "nickName":
+                    userDTO.setNickName(value.toString());
+                    break;
+                case "icon":
+                    userDTO.setIcon(value.toString());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return userDTO;
+    }
+
+    /**
+     * 登录用户 -> login:token:{token}，null的字段不写
+     */
+    public static Map<String, String> fromUserDTO(UserDTO userDTO) {
+        Map<String, String> values = new HashMap<>(4);
+        if (userDTO.getId() != null) {
+            values.put("id", userDTO.getId().toString());
+        }
+        if (userDTO.getNickName() != null) {
+            values.put("nickName", userDTO.getNickName());
+        }
+        if (userDTO.getIcon() != null) {
+            values.put("icon", userDTO.getIcon());
+        }
+        return values;
+    }
+
+    private static Long parseLong(Object value) {
+        return value instanceof Long ? (Long) value : Long.valueOf(value.toString());
+    }
+}
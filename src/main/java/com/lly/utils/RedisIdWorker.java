@@ -1,15 +1,26 @@
 package com.lly.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     /*
     * 开始时间戳
     * */
@@ -18,8 +29,40 @@ public class RedisIdWorker {
     * 序列号的位数
     * */
     private static final int COUNT_BITS = 32;
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /*
+    * 号段模式：每次用INCRBY从Redis取一段序列号，在本地分配，0表示每个id都INCR一次
+    * */
+    @Value("${id.segment.size:0}")
+    private int segmentSize;
+
+    /*
+    * 当前号段用掉这个比例后，异步预取下一段
+    * */
+    @Value("${id.segment.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    //keyPrefix -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //预取号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //缓存当天的日期字符串，跨天才重新格式化
+    private volatile DayKey today = new DayKey(-1, null);
+
+    @Override
     public long nextId(String keyPrefix){
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -28,14 +71,126 @@ public class RedisIdWorker {
 
         //2.生成序列号
         //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.1自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+date);
+        DayKey day = dayOf(nowSecond);
+        long count;
+        if (segmentSize <= 0) {
+            //2.2自增长
+            count = stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+day.date);
+        } else {
+            //2.2从号段里分配
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
+        }
         //3.拼接并返回
         //格式 1符号位 31时间戳 32序列号
         return timestamp<<COUNT_BITS | count;
     }
 
+    private DayKey dayOf(long nowSecond) {
+        long epochDay = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        DayKey day = today;
+        if (day.epochDay != epochDay) {
+            day = new DayKey(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            today = day;
+        }
+        return day;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    private static class DayKey {
+        private final long epochDay;
+        private final String date;
+
+        DayKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    /*
+    * 一段序列号 [next, end]，只属于某一天，跨天后作废
+    * 序列号每天从1开始，用前一天的号段配当天的时间戳可能和当天的新号段重复
+    * */
+    private static class Segment {
+        private final long epochDay;
+        private final AtomicLong next;
+        private final long end;
+        //分配到这个序列号时触发预取
+        private final long prefetchAt;
+
+        Segment(long epochDay, long start, long end, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /*
+    * 一个业务前缀的号段，快路径只有一次getAndIncrement，号段用完才加锁切换
+    * */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> prefetched;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(DayKey day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.epochDay == day.epochDay) {
+                    long count = segment.next.getAndIncrement();
+                    if (count <= segment.end) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        private void prefetch(DayKey day) {
+            prefetched = CompletableFuture.supplyAsync(() -> allocate(day), prefetchExecutor);
+        }
+
+        private synchronized void switchSegment(Segment exhausted, DayKey day) {
+            if (current != exhausted) {
+                //别的线程已经换好了
+                return;
+            }
+            Segment next = null;
+            CompletableFuture<Segment> future = prefetched;
+            prefetched = null;
+            if (future != null) {
+                try {
+                    next = future.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败，同步获取 keyPrefix={}", keyPrefix, e);
+                }
+            }
+            if (next == null || next.epochDay != day.epochDay) {
+                next = allocate(day);
+            }
+            current = next;
+        }
+
+        private Segment allocate(DayKey day) {
+            long end = stringRedisTemplate.opsForValue()
+                    .increment("icr:" + keyPrefix + ":" + day.date, segmentSize);
+            long start = end - segmentSize + 1;
+            long prefetchAt = start + (long) (segmentSize * prefetchRatio);
+            return new Segment(day.epochDay, start, end, Math.min(prefetchAt, end));
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
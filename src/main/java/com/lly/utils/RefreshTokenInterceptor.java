@@ -1,10 +1,9 @@
 package com.lly.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.lly.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,7 +15,7 @@ import java.util.concurrent.TimeUnit;
 * 拦截器是在spring容器初始化haul之前执行的，加什么Component注解都没有
 * 这个对象是我们手动创建的，所以不能自动装配，只能手动注入
 * */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -40,7 +39,7 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             return true;
         }
         //5.将查询到的Hash数据转为UserDTO对象
-        UserDTO user = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        UserDTO user = RedisHashCodec.toUserDTO(userMap);
         // 6.存在，保存用户信息到ThreadLocal
         UserHolder.saveUser((UserDTO)user);
 
@@ -50,6 +49,15 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    /*
+    * 长轮询等异步请求，第一次分发结束时不会调用afterCompletion，这里也要移除用户，
+    * 否则这个tomcat线程处理下一个请求时还能拿到上一个用户
+    * */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         //移除用户
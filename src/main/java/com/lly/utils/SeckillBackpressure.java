@@ -0,0 +1,72 @@
+package com.lly.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+/*
+* 秒杀链路的背压：lua脚本接收订单和订单落库之间没有上限，消费者跟不上时stream会越积越多
+* 按所有分区未确认的订单数（pending + lag）判断，带滞回：
+* 超过高水位后拒绝新的秒杀请求，降到低水位以下才重新放开，避免在水位线附近来回切换
+* 积压数用SeckillStreamMonitor定时刷新的结果，请求线程不访问Redis
+* */
+@Slf4j
+@Component
+public class SeckillBackpressure {
+
+    @Value("${seckill.backpressure.high-water-mark:50000}")
+    private long highWaterMark;
+
+    @Value("${seckill.backpressure.low-water-mark:10000}")
+    private long lowWaterMark;
+
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private volatile boolean overloaded;
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.backpressure.active", this, b -> b.overloaded ? 1 : 0)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 是否应该拒绝新的秒杀请求
+     */
+    public boolean isOverloaded() {
+        long backlog = backlog();
+        if (overloaded) {
+            if (backlog < lowWaterMark) {
+                overloaded = false;
+                log.info("订单积压降到{}，恢复接收秒杀请求", backlog);
+            }
+        } else if (backlog > highWaterMark) {
+            overloaded = true;
+            log.warn("订单积压达到{}，暂停接收秒杀请求", backlog);
+        }
+        return overloaded;
+    }
+
+    private long backlog() {
+        long backlog = 0;
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            SeckillStreamMonitor.StreamStats stats = seckillStreamMonitor.latest(streamKey);
+            if (stats != null) {
+                backlog += stats.getBacklog();
+            }
+        }
+        return backlog;
+    }
+}
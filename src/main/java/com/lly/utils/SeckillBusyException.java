@@ -0,0 +1,12 @@
+package com.lly.utils;
+
+/*
+* 秒杀链路过载，请求没有执行lua脚本，可以稍后重试
+* WebExceptionAdvice把它转换成429
+* */
+public class SeckillBusyException extends RuntimeException {
+
+    public SeckillBusyException(String message) {
+        super(message);
+    }
+}
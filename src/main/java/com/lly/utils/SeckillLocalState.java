@@ -0,0 +1,154 @@
+package com.lly.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lly.utils.RedisConstants.*;
+
+/*
+* 秒杀券在本JVM里的状态，命中后不需要再访问Redis
+* 售罄标记由lua脚本返回1时设置，通过Redis发布订阅同步到所有节点，补库存时清除
+* 秒杀时间窗口是seckill:meta:{id}的本地副本，第一次用到时加载，元数据变化时通过发布订阅失效
+* */
+@Component
+public class SeckillLocalState {
+
+    /*
+    * 售罄标记的有效期，过期后放一个请求去Redis确认一次
+    * 发布订阅的消息可能丢失，补库存和售罄也可能同时发生，这个有效期是兜底
+    * */
+    @Value("${seckill.sold-out.recheck:10s}")
+    private Duration soldOutRecheck;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //voucherId -> 售罄标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    //voucherId -> {begin, end}，没有元数据的秒杀券用NO_WINDOW占位，交给lua脚本判断
+    private final Map<Long, long[]> timeWindows = new ConcurrentHashMap<>();
+
+    private static final long[] NO_WINDOW = new long[0];
+
+    public static final int IN_TIME = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> setSoldOut(parseVoucherId(message.getBody())),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOut.remove(parseVoucherId(message.getBody())),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> timeWindows.remove(parseVoucherId(message.getBody())),
+                new ChannelTopic(SECKILL_META_CHANNEL));
+    }
+
+    private static Long parseVoucherId(byte[] body) {
+        return Long.valueOf(new String(body, StandardCharsets.UTF_8));
+    }
+
+    //返回之前是否已经是售罄状态
+    private boolean setSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + soldOutRecheck.toMillis());
+        return previous != null && previous >= now;
+    }
+
+    /**
+     * 本地判断是否售罄，不访问Redis
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播给其它节点
+     */
+    public void markSoldOut(Long voucherId) {
+        //已经标记过的就不用再广播了，售罄瞬间并发返回的请求很多
+        if (setSoldOut(voucherId)) {
+            return;
+        }
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 补库存后清除售罄标记并广播给其它节点
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 本地判断是否在秒杀时间内，只有第一次会去Redis加载元数据
+     * @return IN_TIME、NOT_STARTED、ENDED，和lua脚本的返回值一致
+     */
+    public int checkTimeWindow(Long voucherId) {
+        long[] window = timeWindows.computeIfAbsent(voucherId, this::loadTimeWindow);
+        if (window.length == 0) {
+            return IN_TIME;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        if (now > window[1]) {
+            return ENDED;
+        }
+        return IN_TIME;
+    }
+
+    private long[] loadTimeWindow(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_META_KEY + voucherId, Arrays.asList("begin", "end"));
+        if (values.get(0) == null || values.get(1) == null) {
+            return NO_WINDOW;
+        }
+        return new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+    }
+
+    /**
+     * 秒杀开始前预热：重新加载时间窗口，清掉之前留下的售罄标记
+     */
+    public void preload(Long voucherId) {
+        timeWindows.put(voucherId, loadTimeWindow(voucherId));
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 秒杀时间变化后更新本地副本，并通知其它节点重新加载
+     */
+    public void updateTimeWindow(Long voucherId, long begin, long end) {
+        timeWindows.put(voucherId, new long[]{begin, end});
+        stringRedisTemplate.convertAndSend(SECKILL_META_CHANNEL, voucherId.toString());
+    }
+}
@@ -0,0 +1,233 @@
+package com.lly.utils;
+
+import com.lly.entity.VoucherOrder;
+import com.lly.service.IVoucherOrderService;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XClaimArgs;
+import io.lettuce.core.XPendingArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.models.stream.PendingMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/*
+* 回收处理失败或者消费者宕机遗留在pending-list里的订单消息
+* 1.定时XPENDING IDLE min-idle 找出空闲的消息，不管原来属于哪个节点的哪个消费者
+* 2.重试次数直接用XPENDING的投递次数：第一次是正常消费，之后每回收一次加一，不再另外记录
+* 3.指数退避靠加大空闲时间：投递过n次的消息要空闲 min-idle * 2^(n-1) 才回收，
+*   XCLAIM带上同样的min-idle，多个节点同时回收同一条只有一个能成功
+* 4.第max-attempts次重试还失败，连同失败原因转移到stream.orders.dlq，然后ACK，不再卡住后面的订单
+* */
+@Slf4j
+@Component
+public class SeckillOrderReclaimer {
+
+    //退避最多翻倍这么多次，避免移位溢出
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    @Value("${seckill.order.reclaim.min-idle:30s}")
+    private Duration minIdle;
+
+    @Value("${seckill.order.reclaim.count:100}")
+    private int count;
+
+    @Value("${seckill.order.reclaim.max-attempts:5}")
+    private int maxAttempts;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderStatus voucherOrderStatus;
+
+    @Resource
+    private VoucherOrderShardMigrator voucherOrderShardMigrator;
+
+    /*
+    * 以前的版本把重试信息记在{stream}.retry里，现在不再使用，删掉遗留的
+    * */
+    @PostConstruct
+    private void init() {
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            stringRedisTemplate.delete(streamKey + ".retry");
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.order.reclaim.interval:5000}")
+    public void reclaim() {
+        //和消费者一样，迁移完成之前不处理
+        if (!voucherOrderShardMigrator.isMigrated()) {
+            return;
+        }
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            try {
+                reclaim(streamKey);
+            } catch (Exception e) {
+                log.error("回收pending订单异常 stream={}", streamKey, e);
+            }
+        }
+    }
+
+    private void reclaim(String streamKey) {
+        Range.Boundary<String> lower = Range.Boundary.unbounded();
+        while (true) {
+            //1.XPENDING stream g1 IDLE minIdle (lastId + COUNT n
+            List<PendingMessage> pendingMessages = pending(streamKey, lower);
+            if (pendingMessages.isEmpty()) {
+                return;
+            }
+            //2.逐条处理，一条失败不影响其它的
+            for (PendingMessage pendingMessage : pendingMessages) {
+                try {
+                    reclaim(streamKey, pendingMessage);
+                } catch (Exception e) {
+                    log.error("回收pending订单异常 stream={}, id={}", streamKey, pendingMessage.getId(), e);
+                }
+            }
+            if (pendingMessages.size() < count) {
+                return;
+            }
+            lower = Range.Boundary.excluding(pendingMessages.get(pendingMessages.size() - 1).getId());
+        }
+    }
+
+    private void reclaim(String streamKey, PendingMessage pendingMessage) {
+        long deliveries = pendingMessage.getRedeliveryCount();
+        Duration required = minIdle.multipliedBy(1L << Math.min(deliveries - 1, MAX_BACKOFF_SHIFT));
+        //1.还在退避时间内，下一轮再看
+        if (pendingMessage.getMsSinceLastDelivery() < required.toMillis()) {
+            return;
+        }
+        //2.别的节点已经抢先回收了
+        StreamMessage<byte[], byte[]> message = claim(streamKey, pendingMessage.getId(), required);
+        if (message == null) {
+            return;
+        }
+        retry(streamKey, message, deliveries);
+    }
+
+    private List<PendingMessage> pending(String streamKey, Range.Boundary<String> lower) {
+        byte[] key = streamKey.getBytes(StandardCharsets.UTF_8);
+        byte[] group = SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8);
+        Range<String> range = Range.from(lower, Range.Boundary.unbounded());
+        List<PendingMessage> result = nativeCall(commands -> commands.xpending(key,
+                XPendingArgs.Builder.xpending(group, range, Limit.from(count)).idle(minIdle)));
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    private StreamMessage<byte[], byte[]> claim(String streamKey, String id, Duration required) {
+        byte[] key = streamKey.getBytes(StandardCharsets.UTF_8);
+        Consumer<byte[]> consumer = Consumer.from(
+                SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                seckillOrderStreams.reclaimerName().getBytes(StandardCharsets.UTF_8));
+        //XCLAIM只认领空闲时间仍然不小于required的，认领后投递次数加一
+        List<StreamMessage<byte[], byte[]>> claimed = nativeCall(commands ->
+                commands.xclaim(key, consumer, XClaimArgs.Builder.minIdleTime(required), id));
+        return claimed == null || claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    /*
+    * spring-data-redis还没有XPENDING IDLE和XCLAIM，直接用lettuce的原生命令
+    * */
+    @SuppressWarnings("unchecked")
+    private <T> T nativeCall(Function<RedisClusterAsyncCommands<byte[], byte[]>, Future<T>> call) {
+        return stringRedisTemplate.execute((RedisCallback<T>) connection -> {
+            try {
+                return call.apply((RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection()).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("执行stream命令失败", e.getCause());
+            }
+        });
+    }
+
+    /*
+    * attempts：这是第几次重试，等于认领之前的投递次数
+    * */
+    private void retry(String streamKey, StreamMessage<byte[], byte[]> message, long attempts) {
+        String id = message.getId();
+        Map<Object, Object> values = new HashMap<>(message.getBody().size());
+        message.getBody().forEach((k, v) -> values.put(
+                new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+        try {
+            //1.上一次重试中途宕机，次数已经用完
+            if (attempts > maxAttempts) {
+                throw new IllegalStateException("重试次数已经用完");
+            }
+            //2.重新创建订单
+            VoucherOrder voucherOrder = RedisHashCodec.toVoucherOrder(values);
+            voucherOrderService.handleVoucherOrders(Collections.singletonList(voucherOrder));
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, id);
+        } catch (Exception e) {
+            if (attempts >= maxAttempts) {
+                //3.重试次数用完，进入死信队列
+                deadLetter(streamKey, id, values, attempts, e);
+                return;
+            }
+            //4.留在pending-list里，空闲时间翻倍后再回收
+            log.warn("重试订单失败 stream={}, id={}, attempts={}, 下次重试在空闲{}后", streamKey, id, attempts,
+                    minIdle.multipliedBy(1L << Math.min(attempts, MAX_BACKOFF_SHIFT)), e);
+        }
+    }
+
+    private void deadLetter(String streamKey, String id, Map<Object, Object> values, long attempts, Exception e) {
+        Map<String, String> dead = new HashMap<>(values.size() + 4);
+        values.forEach((k, v) -> dead.put(k.toString(), v.toString()));
+        dead.put("stream", streamKey);
+        dead.put("recordId", id);
+        dead.put("attempts", String.valueOf(attempts));
+        dead.put("reason", String.valueOf(e.getMessage()));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, dead);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, id);
+        //消息本身坏了（缺字段、不是数字）也要能进死信队列，只是没法更新订单状态
+        Long orderId = parseLong(values.get("id"));
+        Long userId = parseLong(values.get("userId"));
+        if (orderId != null && userId != null) {
+            voucherOrderStatus.markFailed(orderId, userId, "订单创建失败");
+        } else {
+            log.warn("死信消息缺少订单id或者用户id，不更新订单状态 stream={}, id={}", streamKey, id);
+        }
+        log.error("订单重试{}次仍然失败，转入死信队列 stream={}, id={}", attempts, streamKey, id, e);
+    }
+
+    private static Long parseLong(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
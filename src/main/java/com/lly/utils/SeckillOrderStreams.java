@@ -0,0 +1,148 @@
+package com.lly.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/*
+* 秒杀订单消息队列的分区信息
+* partitions<=1时只有一个stream.orders，否则按userId取模分到stream.orders.{n}
+* 同一个用户永远落在同一个分区，节点内每个分区只由一个消费者线程读取，保证单用户的顺序
+* 消费者名称 {node-id}-{index}，节点重启后沿用原来的名称，消费者组里的消费者不会越积越多；
+* 下线或者改名后留下的消费者，pending被回收完、空闲超过stale-after之后定时删除
+* */
+@Slf4j
+@Component
+public class SeckillOrderStreams {
+
+    @Value("${seckill.order.partitions:1}")
+    private int partitions;
+
+    /*
+    * 本节点消费者名称前缀，重启后保持不变，默认是主机名
+    * 同一台主机上跑多个进程时要分别配置，否则会共用同一组消费者
+    * */
+    @Value("${seckill.order.node-id:}")
+    private String nodeId;
+
+    //消费者没有pending消息、空闲超过这个时间就删除
+    @Value("${seckill.order.consumer-stale-after:1h}")
+    private Duration staleAfter;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private List<String> streamKeys;
+
+    private String consumerPrefix;
+
+    @PostConstruct
+    private void init() throws UnknownHostException {
+        consumerPrefix = StrUtil.isNotBlank(nodeId) ? nodeId.trim() : InetAddress.getLocalHost().getHostName();
+        List<String> keys = new ArrayList<>();
+        if (partitions <= 1) {
+            keys.add(SECKILL_ORDER_STREAM);
+        } else {
+            for (int i = 0; i < partitions; i++) {
+                keys.add(SECKILL_ORDER_STREAM + "." + i);
+            }
+        }
+        streamKeys = Collections.unmodifiableList(keys);
+        //创建消费者组 XGROUP CREATE key g1 0 MKSTREAM，已经存在会报BUSYGROUP，忽略即可
+        for (String key : streamKeys) {
+            try {
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> createGroup(connection, key));
+            } catch (DataAccessException e) {
+                log.debug("消费者组已存在 stream={}, group={}", key, SECKILL_ORDER_GROUP);
+            }
+        }
+    }
+
+    /*
+    * 删除已经不用的消费者 XGROUP DELCONSUMER，比如节点下线、改了node-id、老版本 pid@host 形式的名称
+    * 还有pending消息的先留着，等SeckillOrderReclaimer认领走之后再删，不会丢消息
+    * */
+    @Scheduled(fixedDelayString = "${seckill.order.consumer-cleanup-interval:600000}")
+    public void removeStaleConsumers() {
+        for (String key : streamKeys) {
+            try {
+                StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(key, SECKILL_ORDER_GROUP);
+                for (int i = 0; i < consumers.size(); i++) {
+                    StreamInfo.XInfoConsumer consumer = consumers.get(i);
+                    //1.本节点的消费者不删
+                    if (consumer.consumerName().startsWith(consumerPrefix + "-")) {
+                        continue;
+                    }
+                    //2.没有pending消息，并且很久没有读取
+                    if (consumer.pendingCount() > 0 || consumer.idleTimeMs() < staleAfter.toMillis()) {
+                        continue;
+                    }
+                    stringRedisTemplate.opsForStream().deleteConsumer(key, Consumer.from(SECKILL_ORDER_GROUP, consumer.consumerName()));
+                    log.info("删除不再使用的消费者 stream={}, consumer={}, idle={}ms", key, consumer.consumerName(), consumer.idleTimeMs());
+                }
+            } catch (Exception e) {
+                log.warn("清理消费者失败 stream={}", key, e);
+            }
+        }
+    }
+
+    private String createGroup(RedisConnection connection, String key) {
+        return connection.streamCommands().xGroupCreate(
+                key.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true);
+    }
+
+    /**
+     * 用户的订单应该写入的stream
+     * @param userId 用户id
+     * @return stream的key
+     */
+    public String streamKey(Long userId) {
+        if (streamKeys.size() == 1) {
+            return streamKeys.get(0);
+        }
+        return streamKeys.get((int) Math.floorMod(userId, (long) streamKeys.size()));
+    }
+
+    /**
+     * 所有分区的stream
+     */
+    public List<String> streamKeys() {
+        return streamKeys;
+    }
+
+    /**
+     * 本节点第index个消费者的名称
+     */
+    public String consumerName(int index) {
+        return consumerPrefix + "-" + index;
+    }
+
+    /**
+     * 本节点回收pending消息用的消费者名称
+     */
+    public String reclaimerName() {
+        return consumerPrefix + "-reclaimer";
+    }
+}
@@ -0,0 +1,121 @@
+package com.lly.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lly.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/*
+* 秒杀接口的准入限流，按优惠券维度，两层令牌桶：
+* 1.本地令牌桶，每个节点各自限流，不访问Redis，挡掉绝大部分超量请求
+* 2.Redis令牌桶（可选），整个集群共用，按Redis能承受的秒杀脚本QPS来配置
+* 速率配置成0表示关闭这一层
+* */
+@Component
+public class SeckillRateLimiter {
+
+    @Value("${seckill.rate-limit.local.permits-per-second:0}")
+    private double localRate;
+
+    @Value("${seckill.rate-limit.local.burst:2000}")
+    private double localBurst;
+
+    @Value("${seckill.rate-limit.redis.permits-per-second:0}")
+    private double redisRate;
+
+    @Value("${seckill.rate-limit.redis.burst:0}")
+    private double redisBurst;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //voucherId -> 本地令牌桶
+    private final Map<Long, TokenBucket> localBuckets = new ConcurrentHashMap<>();
+
+    private Counter localRejected;
+    private Counter redisRejected;
+
+    @PostConstruct
+    private void init() {
+        localRejected = meterRegistry.counter("seckill.admission.rejected", "layer", "local");
+        redisRejected = meterRegistry.counter("seckill.admission.rejected", "layer", "redis");
+    }
+
+    /**
+     * 尝试获取秒杀资格判断的令牌
+     * @param voucherId 优惠券id
+     * @return false表示超过限流，应该直接返回繁忙
+     */
+    public boolean tryAcquire(Long voucherId) {
+        //1.本地令牌桶
+        if (localRate > 0) {
+            TokenBucket bucket = localBuckets.computeIfAbsent(voucherId,
+                    id -> new TokenBucket(localRate, Math.max(localBurst, 1)));
+            if (!bucket.tryAcquire()) {
+                localRejected.increment();
+                return false;
+            }
+        }
+        //2.Redis令牌桶
+        if (redisRate > 0) {
+            Long allowed = luaScriptRegistry.execute(
+                    "token_bucket",
+                    Long.class,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    redisRate, Math.max(redisBurst, 1)
+            );
+            if (allowed == null || allowed == 0) {
+                redisRejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * 本地令牌桶，取令牌时按流逝的时间补充，不需要定时任务
+    * 时间可以从外面传入，方便单元测试
+    * */
+    static class TokenBucket {
+        private final double permitsPerNano;
+        private final double burst;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double permitsPerSecond, double burst) {
+            this(permitsPerSecond, burst, System.nanoTime());
+        }
+
+        TokenBucket(double permitsPerSecond, double burst, long nowNanos) {
+            this.permitsPerNano = permitsPerSecond / 1_000_000_000D;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefill = nowNanos;
+        }
+
+        boolean tryAcquire() {
+            return tryAcquire(System.nanoTime());
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
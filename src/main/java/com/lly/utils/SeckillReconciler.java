@@ -0,0 +1,260 @@
+package com.lly.utils;
+
+import com.lly.entity.VoucherOrder;
+import com.lly.service.IVoucherOrderService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lly.utils.RedisConstants.*;
+
+/*
+* Redis和MySQL之间秒杀库存、订单的对账
+* 请求时以Redis的seckill:stock:*、seckill:order:*为准，数据库是异步写的，崩溃、消费失败、手工改数据都会造成不一致
+* 1.SCAN seckill:stock:* 找出所有秒杀券，不用KEYS
+* 2.每张券SSCAN出Redis里已下单的用户，排序后和数据库按user_id分页查出来的有序流做归并，得到两边的差集
+* 3.Redis里有数据库没有的：可能还在stream里没消费，连续两轮都出现才算不一致
+*   数据库有Redis没有的：Redis丢了数据，补回订单集合，防止再次下单
+* 4.Redis库存应该等于 总库存 - Redis里的下单人数
+* 默认只报告，开启repair后修复；每批Redis和数据库操作之间停顿一下，控制对线上的压力
+* */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    @Value("${seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    //SCAN、SSCAN每次的COUNT
+    @Value("${seckill.reconcile.scan-count:100}")
+    private long scanCount;
+
+    //数据库每页查询的订单数
+    @Value("${seckill.reconcile.page-size:500}")
+    private int pageSize;
+
+    //每批Redis或数据库操作之后的停顿
+    @Value("${seckill.reconcile.pause:20ms}")
+    private Duration pause;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private VoucherOrderSharding voucherOrderSharding;
+
+    //voucherId -> 上一轮Redis里有、数据库没有的用户
+    private final Map<Long, Set<Long>> suspects = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${seckill.reconcile.interval:3600000}",
+            initialDelayString = "${seckill.reconcile.initial-delay:600000}")
+    public void reconcile() {
+        //多个节点只需要一个在对账
+        SimpleRedisLock lock = new SimpleRedisLock("seckill:reconcile", stringRedisTemplate, luaScriptRegistry);
+        if (!lock.tryLock(3600)) {
+            return;
+        }
+        try {
+            for (Long voucherId : scanVoucherIds()) {
+                try {
+                    reconcile(voucherId);
+                } catch (Exception e) {
+                    log.error("秒杀对账失败 voucherId={}", voucherId, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    * SCAN seckill:stock:*，key是seckill:stock:{id}
+    * */
+    private Set<Long> scanVoucherIds() throws InterruptedException {
+        Set<Long> voucherIds = new TreeSet<>();
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_STOCK_KEY + "*").count(scanCount).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.execute((RedisCallback<Cursor<byte[]>>) c -> c.scan(options))) {
+            int n = 0;
+            while (cursor.hasNext()) {
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                String id = key.substring(SECKILL_STOCK_KEY.length());
+                try {
+                    voucherIds.add(Long.valueOf(id));
+                } catch (NumberFormatException ignored) {
+                    //不是秒杀库存的key
+                }
+                if (++n % scanCount == 0) {
+                    pause();
+                }
+            }
+        }
+        return voucherIds;
+    }
+
+    private void reconcile(Long voucherId) throws InterruptedException {
+        //1.元数据：总库存
+        Object totalValue = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + voucherId, "total");
+        Long total = totalValue == null ? null : Long.valueOf(totalValue.toString());
+
+        //2.Redis里已下单的用户，排好序
+        long[] redisUsers = scanOrderedUsers(voucherId);
+
+        //3.和数据库的有序流归并，订单分表时每个分表只和属于它的用户归并
+        List<Long> redisOnly = new ArrayList<>();
+        List<Long> dbOnly = new ArrayList<>();
+        for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+            int s = shard;
+            long[] shardUsers = Arrays.stream(redisUsers)
+                    .filter(userId -> voucherOrderSharding.shardOf(userId) == s).toArray();
+            merge(voucherId, shard, shardUsers, redisOnly, dbOnly);
+        }
+
+        //4.Redis有数据库没有的，连续两轮都出现才算
+        Set<Long> previous = suspects.getOrDefault(voucherId, Collections.emptySet());
+        List<Long> missingOrders = new ArrayList<>();
+        for (Long userId : redisOnly) {
+            if (previous.contains(userId)) {
+                missingOrders.add(userId);
+            }
+        }
+        if (redisOnly.isEmpty()) {
+            suspects.remove(voucherId);
+        } else {
+            suspects.put(voucherId, new HashSet<>(redisOnly));
+        }
+
+        //5.Redis库存应该等于 总库存 - Redis里的下单人数（加上修复后补回的）
+        long expectedStock = -1;
+        long redisStock = -1;
+        if (total != null) {
+            long redisOrders = redisUsers.length + (repair ? dbOnly.size() - missingOrders.size() : 0);
+            expectedStock = total - redisOrders;
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            redisStock = stock == null ? 0 : Long.parseLong(stock);
+        }
+
+        //6.报告
+        report("missing_order", missingOrders.size());
+        report("missing_redis_order", dbOnly.size());
+        report("stock", redisStock != expectedStock ? 1 : 0);
+        if (!missingOrders.isEmpty() || !dbOnly.isEmpty() || redisStock != expectedStock) {
+            log.warn("秒杀对账不一致 voucherId={}, Redis有数据库没有={}, 数据库有Redis没有={}, Redis库存={}, 应为{}",
+                    voucherId, missingOrders, dbOnly, redisStock, expectedStock);
+        }
+        if (!repair) {
+            return;
+        }
+
+        //7.修复：数据库是已经落库的事实，订单集合向数据库看齐，库存按订单集合重新计算
+        for (Long userId : dbOnly) {
+            stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + voucherId, userId.toString());
+        }
+        for (Long userId : missingOrders) {
+            //订单没能落库（比如进了死信队列），放开这个用户的资格
+            stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_KEY + voucherId, userId.toString());
+            suspects.getOrDefault(voucherId, Collections.emptySet()).remove(userId);
+        }
+        if (total != null && redisStock != expectedStock) {
+            //库存不会被修成负数
+            //统计和修改之间如果有人下单，这次修复会有偏差，下一轮对账会再修正；秒杀进行中最好不要开启repair
+            long delta = Math.max(expectedStock, 0) - redisStock;
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, delta);
+            log.warn("秒杀对账修复库存 voucherId={}, delta={}", voucherId, delta);
+        }
+    }
+
+    private void merge(Long voucherId, int shard, long[] redisUsers, List<Long> redisOnly, List<Long> dbOnly)
+            throws InterruptedException {
+        int i = 0;
+        Long lastUserId = null;
+        while (true) {
+            Long afterUserId = lastUserId;
+            List<Long> page = voucherOrderSharding.onShard(shard, () -> queryUserIds(voucherId, afterUserId));
+            for (Long userId : page) {
+                while (i < redisUsers.length && redisUsers[i] < userId) {
+                    redisOnly.add(redisUsers[i++]);
+                }
+                if (i < redisUsers.length && redisUsers[i] == userId) {
+                    i++;
+                } else {
+                    dbOnly.add(userId);
+                }
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+            lastUserId = page.get(page.size() - 1);
+            pause();
+        }
+        while (i < redisUsers.length) {
+            redisOnly.add(redisUsers[i++]);
+        }
+    }
+
+    private long[] scanOrderedUsers(Long voucherId) throws InterruptedException {
+        List<Long> users = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().count(scanCount).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(SECKILL_ORDER_KEY + voucherId, options)) {
+            while (cursor.hasNext()) {
+                users.add(Long.valueOf(cursor.next()));
+                if (users.size() % scanCount == 0) {
+                    pause();
+                }
+            }
+        }
+        return users.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+    }
+
+    /*
+    * 按user_id分页，走(voucher_id, user_id)索引
+    * select user_id from tb_voucher_order where voucher_id = ? and user_id > ? order by user_id limit ?
+    * */
+    private List<Long> queryUserIds(Long voucherId, Long afterUserId) {
+        List<Long> userIds = new ArrayList<>(pageSize);
+        for (VoucherOrder order : voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .gt(afterUserId != null, "user_id", afterUserId)
+                .orderByAsc("user_id")
+                .last("limit " + pageSize)
+                .list()) {
+            userIds.add(order.getUserId());
+        }
+        return userIds;
+    }
+
+    private void report(String type, long count) {
+        if (count > 0) {
+            meterRegistry.counter("seckill.reconcile.drift", "type", type).increment(count);
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        if (!pause.isZero()) {
+            Thread.sleep(pause.toMillis());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.lly.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.lly.entity.SeckillVoucher;
+import com.lly.entity.VoucherOrder;
+import com.lly.mapper.VoucherOrderMapper;
+import com.lly.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lly.utils.RedisConstants.SECKILL_META_KEY;
+
+/*
+* 秒杀库存扣减的合并写：
+* 订单落库后只在内存里记下每张券新增的订单数，定时每张券用一条update写回数据库，
+* 同一行不再被每批订单各更新一次，消费者之间也就没有了行锁竞争
+* 是否超卖由Redis库存保证，数据库库存只用于展示和对账，允许落后一个刷盘周期
+* 写回的是按已落库订单算出来的 stock = total - count(订单)，不是内存里累计的差值：
+* 进程崩溃丢掉的只是"哪些券需要刷"，任何节点下一次刷到这张券、或者定时全量重算时都会算对，
+* 多个节点同时写也只是重复写同一个值，不会多扣
+* 总库存记在seckill:meta:{id}的total字段，发布秒杀券和补库存时维护；
+* 没有total的老秒杀券，以及订单还没迁移到分表时，仍按累计的数量 stock = stock - N 扣减
+* */
+@Slf4j
+@Component
+public class SeckillStockFlusher {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //直接用mapper，IVoucherOrderService依赖这里，反过来注入会循环依赖
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private VoucherOrderSharding voucherOrderSharding;
+
+    //迁移完成之前历史订单还在原表里，按分表计数会把库存算多，这时不按订单数重算
+    @Resource
+    private VoucherOrderShardMigrator voucherOrderShardMigrator;
+
+    //voucherId -> 还没有写回数据库的订单数，0表示只需要按订单数重算一次
+    private final Map<Long, Long> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 记录订单已经落库，需要扣减的库存，订单事务提交后调用
+     */
+    public void add(Long voucherId, long count) {
+        pending.merge(voucherId, count, Long::sum);
+    }
+
+    /**
+     * 总库存变了（补库存），下次刷盘时按订单数重算这张券的库存
+     */
+    public void touch(Long voucherId) {
+        pending.merge(voucherId, 0L, Long::sum);
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.stock.flush-interval:1000}")
+    public void flush() {
+        for (Long voucherId : pending.keySet()) {
+            //1.取走当前累计的数量，之后的订单累计到下一次
+            Long count = pending.remove(voucherId);
+            if (count == null) {
+                continue;
+            }
+            try {
+                write(voucherId, count);
+            } catch (Exception e) {
+                //2.失败的放回去，下次再刷
+                pending.merge(voucherId, count, Long::sum);
+                log.error("库存扣减写回失败 voucherId={}, count={}", voucherId, count, e);
+            }
+        }
+    }
+
+    /*
+    * 定时按订单数重算所有秒杀券的库存，启动后马上执行一次
+    * 兜住崩溃的节点没来得及刷、之后也没有新订单的券
+    * */
+    @Scheduled(fixedDelayString = "${seckill.stock.recompute-interval:600000}")
+    public void recomputeAll() {
+        if (!voucherOrderShardMigrator.isMigrated()) {
+            log.warn("订单还没有迁移到分表，跳过按订单数重新计算库存");
+            return;
+        }
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().select("voucher_id").list();
+        int recomputed = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                Long total = total(voucher.getVoucherId());
+                if (total != null) {
+                    recompute(voucher.getVoucherId(), total);
+                    recomputed++;
+                }
+            } catch (Exception e) {
+                log.error("按订单数重新计算库存失败 voucherId={}", voucher.getVoucherId(), e);
+            }
+        }
+        log.info("按订单数重新计算秒杀库存完成，共{}张秒杀券", recomputed);
+    }
+
+    /*
+    * 关闭时把还没写回的扣减刷到数据库
+    * VoucherOrderServiceImpl依赖本类，先销毁，它会等订单消费者都退出之后才返回
+    * */
+    @PreDestroy
+    private void destroy() {
+        flush();
+    }
+
+    private void write(Long voucherId, long count) {
+        //1.有总库存，按订单数重算
+        Long total = total(voucherId);
+        if (total != null && voucherOrderShardMigrator.isMigrated()) {
+            recompute(voucherId, total);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+        //2.update tb_seckill_voucher set stock = stock - N where voucher_id = ?
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            log.error("秒杀券不存在，丢弃库存扣减 voucherId={}, count={}", voucherId, count);
+        }
+    }
+
+    private Long total(Long voucherId) {
+        Object total = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + voucherId, "total");
+        return total == null ? null : Long.valueOf(total.toString());
+    }
+
+    /*
+    * 按订单数重新计算数据库库存：stock = total - count(订单)
+    * */
+    private void recompute(Long voucherId, long total) {
+        //订单可能分表了，逐个分表计数
+        long orders = 0;
+        for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+            orders += voucherOrderSharding.onShard(shard, () -> voucherOrderMapper.selectCount(
+                    new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId)));
+        }
+        seckillVoucherService.update()
+                .setSql("stock = " + (total - orders))
+                .eq("voucher_id", voucherId)
+                .update();
+    }
+}
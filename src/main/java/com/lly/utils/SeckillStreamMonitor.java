@@ -0,0 +1,118 @@
+package com.lly.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+import static com.lly.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/*
+* 订单stream的长度、pending数、lag（还没投递给消费者的条数）
+* 定时刷新并注册为seckill.stream.*指标，其它组件可以直接读最近一次的结果，不用每次访问Redis
+* */
+@Slf4j
+@Component
+public class SeckillStreamMonitor {
+
+    /*
+    * Redis 7之前XINFO没有lag字段，首尾id判断不出来时只能数，每秒每个分区都要数一次，所以只数这么多条
+    * 数满了lag记为这个数，同时标记lagCapped，表示实际不小于它
+    * */
+    @Value("${seckill.stream.lag-count-limit:1000}")
+    private long lagCountLimit;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, StreamStats> latest = new ConcurrentHashMap<>();
+
+    @Data
+    public static class StreamStats {
+        private long length;
+        private long pending;
+        private long lag;
+        private String lastDeliveredId;
+        private String minPendingId;
+        //lag是数到上限为止的下界
+        private boolean lagCapped;
+
+        /**
+         * 还没有被确认的订单数：已投递未ACK的 + 还没投递的
+         * lag数满了时用stream长度作为上限估计，宁可提前背压也不要低估积压
+         */
+        public long getBacklog() {
+            return lagCapped ? Math.max(pending + lag, length) : pending + lag;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            registerGauge("seckill.stream.length", streamKey, StreamStats::getLength);
+            registerGauge("seckill.stream.pending", streamKey, StreamStats::getPending);
+            registerGauge("seckill.stream.lag", streamKey, StreamStats::getLag);
+        }
+    }
+
+    private void registerGauge(String name, String streamKey, ToLongFunction<StreamStats> getter) {
+        Gauge.builder(name, latest, m -> {
+                    StreamStats stats = m.get(streamKey);
+                    return stats == null ? 0 : getter.applyAsLong(stats);
+                })
+                .tag("stream", streamKey)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 从Redis查询stream的最新统计信息
+     */
+    public StreamStats stats(String streamKey) {
+        List<?> result = luaScriptRegistry.execute("stream_stats", List.class,
+                Collections.singletonList(streamKey), SECKILL_ORDER_GROUP, lagCountLimit);
+        StreamStats stats = new StreamStats();
+        stats.setLength(((Number) result.get(0)).longValue());
+        stats.setPending(((Number) result.get(1)).longValue());
+        stats.setLag(((Number) result.get(2)).longValue());
+        stats.setLastDeliveredId(result.get(3).toString());
+        stats.setMinPendingId(result.get(4).toString());
+        stats.setLagCapped(((Number) result.get(5)).longValue() == 1);
+        latest.put(streamKey, stats);
+        return stats;
+    }
+
+    /**
+     * 最近一次刷新的统计信息，不访问Redis，还没刷新过返回null
+     */
+    public StreamStats latest(String streamKey) {
+        return latest.get(streamKey);
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.stream.monitor-interval:1000}")
+    public void refresh() {
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            try {
+                stats(streamKey);
+            } catch (Exception e) {
+                log.warn("刷新stream统计信息失败 stream={}", streamKey, e);
+            }
+        }
+    }
+}
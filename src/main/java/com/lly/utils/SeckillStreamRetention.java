@@ -0,0 +1,192 @@
+package com.lly.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/*
+* 订单stream的保留策略，seckill.lua里XADD没有MAXLEN，不清理的话stream会一直变大
+* 定时把已经ACK的消息（id小于最小pending id，且已经投递过）用XTRIM MINID删掉
+* 可选在删除前把这段消息归档到本地的gzip分段文件，每行一条JSON，用于审计和重放
+* XTRIM MINID需要Redis 6.2及以上，启动时检查版本，版本不够就不清理，只打一条警告
+* */
+@Slf4j
+@Component
+public class SeckillStreamRetention {
+
+    @Value("${seckill.stream.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${seckill.stream.archive.dir:archive}")
+    private String archiveDir;
+
+    @Value("${seckill.stream.archive.batch-size:1000}")
+    private int archiveBatchSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+
+    //Redis版本支持XTRIM MINID
+    private volatile boolean supported = true;
+
+    @PostConstruct
+    private void checkRedisVersion() {
+        String version;
+        try {
+            Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) c -> c.info("server"));
+            version = info == null ? null : info.getProperty("redis_version");
+        } catch (Exception e) {
+            log.warn("读取Redis版本失败，按支持XTRIM MINID处理", e);
+            return;
+        }
+        if (version != null && !atLeast(version, 6, 2)) {
+            supported = false;
+            log.warn("Redis版本{}低于6.2，不支持XTRIM MINID，订单stream不会自动清理", version);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.stream.retention-interval:60000}")
+    public void trim() {
+        if (!supported) {
+            return;
+        }
+        for (String streamKey : seckillOrderStreams.streamKeys()) {
+            try {
+                trim(streamKey);
+            } catch (Exception e) {
+                log.error("清理订单stream失败 stream={}", streamKey, e);
+            }
+        }
+    }
+
+    private void trim(String streamKey) throws IOException {
+        //1.计算保留的最小id：last-delivered-id的下一个，和最小的pending id，取小的那个
+        SeckillStreamMonitor.StreamStats stats = seckillStreamMonitor.stats(streamKey);
+        if ("0-0".equals(stats.getLastDeliveredId())) {
+            //还没有投递过任何消息
+            return;
+        }
+        String minId = nextId(stats.getLastDeliveredId());
+        if (StrUtil.isNotBlank(stats.getMinPendingId()) && compareId(stats.getMinPendingId(), minId) < 0) {
+            minId = stats.getMinPendingId();
+        }
+        //2.归档要删除的消息，归档失败就不删
+        if (archiveEnabled) {
+            archive(streamKey, minId);
+        }
+        //3.XTRIM stream MINID minId
+        Long removed = luaScriptRegistry.execute("xtrim_minid", Long.class,
+                Collections.singletonList(streamKey), minId);
+        if (removed != null && removed > 0) {
+            log.info("清理订单stream stream={}, minId={}, removed={}", streamKey, minId, removed);
+        }
+    }
+
+    private void archive(String streamKey, String minId) throws IOException {
+        File dir = new File(archiveDir, streamKey);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("创建归档目录失败：" + dir);
+        }
+        //先写临时文件，写完再按 第一条id_最后一条id.jsonl.gz 重命名
+        File tmp = new File(dir, "segment.tmp");
+        String firstId = null;
+        String lastId = null;
+        try (Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8)) {
+            String from = "0-0";
+            while (true) {
+                //XRANGE stream from minId COUNT n，分页读取
+                List<MapRecord<String, Object, Object>> page = stringRedisTemplate.opsForStream().range(
+                        streamKey, Range.closed(from, minId), RedisZSetCommands.Limit.limit().count(archiveBatchSize));
+                if (page == null || page.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : page) {
+                    String id = record.getId().getValue();
+                    if (compareId(id, minId) >= 0) {
+                        break;
+                    }
+                    JSONObject line = new JSONObject();
+                    line.set("id", id);
+                    line.set("values", record.getValue());
+                    writer.write(line.toString());
+                    writer.write('\n');
+                    if (firstId == null) {
+                        firstId = id;
+                    }
+                    lastId = id;
+                }
+                if (page.size() < archiveBatchSize) {
+                    break;
+                }
+                from = nextId(page.get(page.size() - 1).getId().getValue());
+                if (compareId(from, minId) >= 0) {
+                    break;
+                }
+            }
+        }
+        if (firstId == null) {
+            Files.deleteIfExists(tmp.toPath());
+            return;
+        }
+        File segment = new File(dir, firstId + "_" + lastId + ".jsonl.gz");
+        Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("归档订单stream stream={}, segment={}", streamKey, segment.getName());
+    }
+
+    //版本号 主版本.次版本.修订号，比如 6.2.14
+    private static boolean atLeast(String version, int major, int minor) {
+        String[] parts = version.split("\\.");
+        try {
+            int actualMajor = Integer.parseInt(parts[0]);
+            int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    //stream id 格式 毫秒时间戳-序号
+    private static String nextId(String id) {
+        int i = id.indexOf('-');
+        return id.substring(0, i) + "-" + (Long.parseLong(id.substring(i + 1)) + 1);
+    }
+
+    private static int compareId(String a, String b) {
+        int i = a.indexOf('-');
+        int j = b.indexOf('-');
+        int c = Long.compare(Long.parseLong(a.substring(0, i)), Long.parseLong(b.substring(0, j)));
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(Long.parseLong(a.substring(i + 1)), Long.parseLong(b.substring(j + 1)));
+    }
+}
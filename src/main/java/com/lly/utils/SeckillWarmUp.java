@@ -0,0 +1,86 @@
+package com.lly.utils;
+
+import com.lly.entity.SeckillVoucher;
+import com.lly.service.ISeckillVoucherService;
+import com.lly.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lly.utils.RedisConstants.SECKILL_WARM_UP_KEY;
+
+/*
+* 秒杀预热：按tb_seckill_voucher.begin_time，在开始前几分钟把秒杀需要的数据准备好
+* 1.Redis：库存、元数据、店铺的优惠券列表缓存，所有节点只需要一个来写，用setIfAbsent抢标记
+* 2.本地：时间窗口、售罄标记，每个节点都要做
+* */
+@Slf4j
+@Component
+public class SeckillWarmUp {
+
+    //提前多久预热
+    @Value("${seckill.warm-up.lead:5m}")
+    private Duration lead;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private SeckillLocalState seckillLocalState;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //voucherId -> 本节点已经预热过的开始时间，开始时间改了会重新预热
+    private final Map<Long, LocalDateTime> warmed = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${seckill.warm-up.interval:60000}")
+    public void warmUp() {
+        //1.查询即将开始的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("begin_time", now)
+                .le("begin_time", now.plus(lead))
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            if (voucher.getBeginTime().equals(warmed.get(voucher.getVoucherId()))) {
+                continue;
+            }
+            try {
+                warmUp(voucher);
+            } catch (Exception e) {
+                log.error("秒杀预热失败 voucherId={}", voucher.getVoucherId(), e);
+            }
+        }
+        //2.已经开始的不需要再记着
+        warmed.values().removeIf(begin -> begin.isBefore(now));
+    }
+
+    private void warmUp(SeckillVoucher voucher) {
+        long begin = System.currentTimeMillis();
+        Long voucherId = voucher.getVoucherId();
+        //1.抢到标记的节点负责写Redis，标记在秒杀开始后过期
+        String key = SECKILL_WARM_UP_KEY + voucherId + ":" + voucher.getBeginTime();
+        Boolean owner = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", lead.multipliedBy(2));
+        if (Boolean.TRUE.equals(owner)) {
+            voucherService.warmUpSeckillVoucher(voucher);
+        }
+        //2.本地状态
+        seckillLocalState.preload(voucherId);
+        warmed.put(voucherId, voucher.getBeginTime());
+        log.info("秒杀预热完成 voucherId={}, 开始时间={}, 写Redis={}, 耗时{}ms",
+                voucherId, voucher.getBeginTime(), Boolean.TRUE.equals(owner), System.currentTimeMillis() - begin);
+    }
+}
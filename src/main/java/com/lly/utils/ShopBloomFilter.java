@@ -0,0 +1,143 @@
+package com.lly.utils;
+
+import com.lly.entity.Shop;
+import com.lly.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.lly.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.lly.utils.RedisConstants.SHOP_BLOOM_CHANNEL;
+
+/*
+* 店铺id的布隆过滤器，防止用不存在的id刷缓存穿透
+* 原来每个不存在的id都要查一次数据库、在Redis里缓存一个空值，随机id扫描时数据库和Redis都扛不住
+* 1.启动时按id分页读tb_shop，只查id，建好后连同读到的最大id注册到CacheClient
+* 2.比最大id大的是之后新增的店铺，CacheClient不拦截，照常查Redis和数据库，
+*   所以不依赖新增通知，发布订阅丢了消息也不会把新店铺误判为不存在
+* 3.新增店铺时本地先加，再通过Redis发布订阅通知其它节点，只是为了补上重建过程中提交的店铺
+* 4.布隆过滤器不能删除，定期全量重建，删掉的店铺被清掉，最大id也跟着前移
+* 建好之前CacheClient不做过滤，和原来一样；默认关闭
+* */
+@Slf4j
+@Component
+public class ShopBloomFilter implements ApplicationRunner {
+
+    @Value("${cache.bloom.shop.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cache.bloom.shop.expected-insertions:100000}")
+    private long expectedInsertions;
+
+    @Value("${cache.bloom.shop.fpp:0.01}")
+    private double fpp;
+
+    //每页读取的店铺数
+    @Value("${cache.bloom.shop.page-size:1000}")
+    private int pageSize;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private volatile IdBloomFilter current;
+    //正在重建的过滤器，重建期间新增的店铺也要加进去
+    private volatile IdBloomFilter building;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //其它节点新增了店铺
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> addLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SHOP_BLOOM_CHANNEL));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebuild();
+    }
+
+    @Scheduled(fixedDelayString = "${cache.bloom.shop.rebuild-interval:3600000}",
+            initialDelayString = "${cache.bloom.shop.rebuild-interval:3600000}")
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            //1.按实际店铺数的2倍和配置取较大的，店铺变多后过滤器跟着变大
+            long count = shopService.count();
+            IdBloomFilter filter = new IdBloomFilter(Math.max(expectedInsertions, count * 2), fpp);
+            building = filter;
+            //2.按id分页，只查id
+            Long lastId = null;
+            long maxId = 0;
+            List<Shop> page;
+            do {
+                page = shopService.query()
+                        .select("id")
+                        .gt(lastId != null, "id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + pageSize)
+                        .list();
+                for (Shop shop : page) {
+                    filter.add(shop.getId());
+                    lastId = shop.getId();
+                    maxId = lastId;
+                }
+            } while (page.size() == pageSize);
+            //3.替换旧的过滤器
+            current = filter;
+            cacheClient.registerBloomFilter(CACHE_SHOP_KEY, filter, maxId);
+            log.info("店铺布隆过滤器重建完成 count={} maxId={} expectedFpp={}", filter.insertions(), maxId, filter.expectedFpp());
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器重建失败", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    /**
+     * 新增店铺后调用，通知所有节点
+     */
+    public void add(Long shopId) {
+        if (!enabled || shopId == null) {
+            return;
+        }
+        //本地先加，不用等通知绕一圈回来
+        addLocal(shopId);
+        stringRedisTemplate.convertAndSend(SHOP_BLOOM_CHANNEL, shopId.toString());
+    }
+
+    private void addLocal(Long shopId) {
+        IdBloomFilter filter = current;
+        if (filter != null) {
+            filter.add(shopId);
+        }
+        filter = building;
+        if (filter != null) {
+            filter.add(shopId);
+        }
+    }
+}
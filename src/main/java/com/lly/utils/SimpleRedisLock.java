@@ -1,9 +1,7 @@
 package com.lly.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -13,23 +11,19 @@ public class SimpleRedisLock implements ILock{
     //区分不同业务
     private String name;
     private StringRedisTemplate stringRedisTemplate;
+    //unlock.lua由脚本注册中心统一加载
+    private LuaScriptRegistry luaScriptRegistry;
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, LuaScriptRegistry luaScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.luaScriptRegistry = luaScriptRegistry;
     }
 
     //锁的统一前缀
     private static final String KEY_PREFIX = "lock:";
     //id前缀
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    //静态代码块只会执行一次，不会浪费IO资源
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
 
     @Override
     public boolean tryLock(long timeoutSec) {
@@ -43,8 +37,9 @@ public class SimpleRedisLock implements ILock{
     @Override
     public void unlock() {
         //调用lua脚本
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+        luaScriptRegistry.execute(
+                "unlock",
+                Long.class,
                 Collections.singletonList(KEY_PREFIX+name),
                 ID_PREFIX + Thread.currentThread().getId());
     }
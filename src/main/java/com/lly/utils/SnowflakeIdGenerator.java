@@ -0,0 +1,247 @@
+package com.lly.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.lly.utils.RedisConstants.ID_WORKER_KEY;
+import static com.lly.utils.RedisConstants.ID_WORKER_UNTIL_KEY;
+
+/*
+* 雪花算法，生成id不访问网络
+* 格式 1符号位 1标记位 40毫秒时间戳 1回拨位 9机器号 12序列号
+* 标记位固定为1，和RedisIdWorker的id（秒时间戳<<32 | 序列号）分开：
+* RedisIdWorker的秒时间戳到2058年才会用到第62位，在这之前它的id都小于2^62，雪花id都不小于2^62，
+* 所以同一个前缀从Redis自增切到雪花算法不会和历史id重复，切换后的id也都比之前的大，按id排序不受影响；
+* 反过来从雪花切回Redis自增也不会重复，但新id会比已经发出的雪花id小
+* 40位毫秒时间戳同样用到2058年，到时两种生成器都要换开始时间
+* 机器号向Redis租用：SET id:worker:{n} NX PX，定时续约，关闭时释放，租约过期后不再发号
+* 时钟回拨：回拨不超过max-backward就等时钟追上来；回拨更多就翻转回拨位，
+* 翻转后的id和之前的id不会重复，回拨位已经用过再回拨只能报错
+* 重启：回拨位和上一次的时间戳只在内存里，重启后都没了，时钟如果还落后，同一个机器号会发出重复的id。
+* 所以每个机器号发出的id的时间戳上限（续约时刻 + 租约有效期，发号前先写）记在id:worker:until:{n}，不过期，
+* 租用机器号时当前时间没超过这个上限就换一个，拿到的机器号上的id一定都比之前持有者的新；
+* 时钟再回拨到这个上限之前也不能翻转回拨位，之前的持有者可能已经用过
+* 正常重启也要等租约有效期过去才能拿回原来的机器号，在这之前会换一个
+* 只有配置了id.snowflake.prefixes才会租用机器号
+* */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    /*
+    * 开始时间戳 2024-01-01 00:00:00 UTC，毫秒
+    * */
+    private static final long BEGIN_TIMESTAMP = 1704067200000L;
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 9;
+    private static final int ROLLBACK_BITS = 1;
+    private static final int TIMESTAMP_BITS = 40;
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+
+    private static final int WORKER_SHIFT = SEQUENCE_BITS;
+    private static final int ROLLBACK_SHIFT = SEQUENCE_BITS + WORKER_BITS;
+    private static final int TIMESTAMP_SHIFT = SEQUENCE_BITS + WORKER_BITS + ROLLBACK_BITS;
+
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    //第62位，区分雪花id和RedisIdWorker的id
+    private static final long SNOWFLAKE_FLAG = 1L << (TIMESTAMP_SHIFT + TIMESTAMP_BITS);
+
+    @Value("${id.snowflake.prefixes:}")
+    private String prefixes;
+
+    //机器号租约有效期，续约周期是它的三分之一
+    @Value("${id.snowflake.lease-ttl:30s}")
+    private Duration leaseTtl;
+
+    //时钟回拨不超过这个时间就等待
+    @Value("${id.snowflake.max-backward:5ms}")
+    private Duration maxBackward;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    //租约的值，区分不同的JVM
+    private final String owner = UUID.randomUUID().toString(true);
+
+    private volatile int workerId = -1;
+    //本地认为租约到期的时间，续约失败、长时间停顿后不再发号，避免和接手这个机器号的JVM重复
+    private volatile long leaseExpireAt;
+    //这个机器号之前的持有者发出的id，时间戳都不超过它
+    private volatile long inheritedUntil;
+
+    private long lastTimestamp = -1;
+    private long sequence;
+    private long rollback;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isNotBlank(prefixes)) {
+            lease();
+        }
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        if (workerId < 0 || System.currentTimeMillis() >= leaseExpireAt) {
+            throw new IllegalStateException("没有有效的机器号租约，不能生成id");
+        }
+        long timestamp = timeGen();
+        //1.时钟回拨
+        if (timestamp < lastTimestamp) {
+            long offset = lastTimestamp - timestamp;
+            if (offset <= maxBackward.toMillis()) {
+                //1.1 回拨很少，等时钟追上来
+                sleep(offset);
+                timestamp = timeGen();
+            }
+            if (timestamp < lastTimestamp) {
+                //1.2 回拨太多，翻转回拨位，从新的时间继续
+                if (rollback == 1) {
+                    throw new IllegalStateException("时钟回拨" + offset + "ms，回拨位已经用过，拒绝生成id");
+                }
+                if (timestamp <= inheritedUntil) {
+                    throw new IllegalStateException("时钟回拨" + offset + "ms，回到了机器号上一个持有者的时间范围内，拒绝生成id");
+                }
+                rollback = 1;
+                sequence = 0;
+                lastTimestamp = timestamp;
+                log.warn("时钟回拨{}ms，启用回拨位 workerId={}", offset, workerId);
+            }
+        }
+        //2.同一毫秒内递增序列号，用完了等下一毫秒
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                while ((timestamp = timeGen()) <= lastTimestamp) {
+                    Thread.yield();
+                }
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        //3.拼接，时间戳超出40位会覆盖标记位
+        long elapsed = timestamp - BEGIN_TIMESTAMP;
+        if (elapsed > MAX_TIMESTAMP) {
+            throw new IllegalStateException("雪花算法时间戳超出" + TIMESTAMP_BITS + "位，需要调整开始时间");
+        }
+        return SNOWFLAKE_FLAG
+                | elapsed << TIMESTAMP_SHIFT
+                | rollback << ROLLBACK_SHIFT
+                | (long) workerId << WORKER_SHIFT
+                | sequence;
+    }
+
+    /*
+    * 生成id用的时钟，单元测试里覆盖它来模拟时钟回拨
+    * 租约到期判断用的是真实时间，不走这里
+    * */
+    long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    /*
+    * 从随机位置开始找一个空闲的机器号
+    * 之前的持有者发出的id可能比本地时钟还新（时钟回拨、重启太快），这样的机器号先不用
+    * */
+    private void lease() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int candidate = (start + i) % MAX_WORKERS;
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + candidate, owner, leaseTtl.toMillis(), TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            String until = stringRedisTemplate.opsForValue().get(ID_WORKER_UNTIL_KEY + candidate);
+            long previous = until == null ? 0 : Long.parseLong(until);
+            if (previous >= now) {
+                luaScriptRegistry.execute("unlock", Long.class,
+                        Collections.singletonList(ID_WORKER_KEY + candidate), owner);
+                continue;
+            }
+            //发号之前先把这次租约内的时间戳上限记下来
+            extendUntil(candidate, now);
+            inheritedUntil = previous;
+            leaseExpireAt = now + leaseTtl.toMillis();
+            workerId = candidate;
+            log.info("租用雪花算法机器号 workerId={}", candidate);
+            return;
+        }
+        throw new IllegalStateException("没有可用的雪花算法机器号，最多" + MAX_WORKERS + "个");
+    }
+
+    /*
+    * 本次租约内发出的id，时间戳不会超过 now + 租约有效期，只增不减
+    * */
+    private void extendUntil(int worker, long now) {
+        luaScriptRegistry.execute("max_set", Long.class,
+                Collections.singletonList(ID_WORKER_UNTIL_KEY + worker), now + leaseTtl.toMillis());
+    }
+
+    @Scheduled(fixedDelayString = "${id.snowflake.heartbeat:10000}")
+    public void heartbeat() {
+        if (workerId < 0) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            //先延长时间戳上限再续约，写失败就不续约，租约到期后不再发号
+            extendUntil(workerId, now);
+            Long renewed = luaScriptRegistry.execute("lease_renew", Long.class,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), owner, leaseTtl.toMillis());
+            if (renewed != null && renewed == 1) {
+                leaseExpireAt = now + leaseTtl.toMillis();
+                return;
+            }
+            //租约已经丢了（过期被别人拿走），重新租一个
+            log.warn("雪花算法机器号租约丢失，重新租用 workerId={}", workerId);
+            synchronized (this) {
+                workerId = -1;
+                lease();
+            }
+        } catch (Exception e) {
+            log.error("雪花算法机器号续约失败 workerId={}", workerId, e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        int current = workerId;
+        if (current < 0) {
+            return;
+        }
+        workerId = -1;
+        luaScriptRegistry.execute("unlock", Long.class,
+                Collections.singletonList(ID_WORKER_KEY + current), owner);
+        log.info("释放雪花算法机器号 workerId={}", current);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.lly.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* 把单表tb_voucher_order的历史订单拆到分表，启动时seckill.order.migrate=true才执行：
+* 1.CREATE TABLE tb_voucher_order_i LIKE tb_voucher_order，索引和原表一致
+* 2.按id分页读取原表，每页按user_id分组，INSERT IGNORE ... SELECT 复制到对应分表
+* 3.每页完成后把进度记到数据库的tb_voucher_order_migration，中断后从断点继续；INSERT IGNORE保证重复执行也没问题
+* 4.全部复制完把同一行的done置1，之后才算迁移完成
+* 直接用JdbcTemplate，绕开MyBatis的动态表名拦截器，才能同时访问原表和分表
+* 进度和完成标记都和订单放在同一个库里，Redis被清空也不会让各节点以为还没迁移、或者重新迁移
+*
+* 迁移在后台线程里执行，不阻塞启动；
+* 所有节点（包括执行迁移的这个）都通过isMigrated()判断，没有完成之前不重算库存，消费者和回收任务也先等着
+* 切换步骤：停掉所有节点 -> 一个节点配置migrate=true、table-shards=n启动完成迁移 -> 其它节点配置同样的table-shards启动
+* */
+@Slf4j
+@Component
+public class VoucherOrderShardMigrator {
+
+    //迁移进度表，只有一行，id固定为1
+    private static final String STATE_TABLE = "tb_voucher_order_migration";
+
+    @Value("${seckill.order.migrate:false}")
+    private boolean enabled;
+
+    @Value("${seckill.order.migrate-chunk-size:1000}")
+    private int chunkSize;
+
+    //每页之间的停顿，控制对数据库的压力
+    @Value("${seckill.order.migrate-pause:50ms}")
+    private Duration pause;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @Resource
+    private VoucherOrderSharding voucherOrderSharding;
+
+    //迁移完成后不会再变回去，确认过一次就不用再查
+    private volatile boolean done;
+
+    private Thread migrator;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled || !voucherOrderSharding.isSharded()) {
+            return;
+        }
+        migrator = new Thread(() -> {
+            try {
+                migrate();
+            } catch (InterruptedException e) {
+                log.warn("订单迁移被中断，下次启动从断点继续");
+            } catch (Exception e) {
+                log.error("订单迁移失败，下次启动从断点继续", e);
+            }
+        }, "voucher-order-migrator");
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (migrator != null) {
+            migrator.interrupt();
+        }
+    }
+
+    /**
+     * 分表里是否已经有全部历史订单：没有分表、迁移已完成，或者原表本来就没有数据
+     */
+    public boolean isMigrated() {
+        if (done) {
+            return true;
+        }
+        done = !voucherOrderSharding.isSharded()
+                || migrationDone()
+                || jdbcTemplate.queryForList("SELECT id FROM " + VoucherOrderSharding.LOGIC_TABLE + " LIMIT 1").isEmpty();
+        return done;
+    }
+
+    /*
+    * 进度表还没建说明没有节点开始过迁移
+    * */
+    private boolean migrationDone() {
+        try {
+            return !jdbcTemplate.queryForList("SELECT id FROM " + STATE_TABLE + " WHERE id = 1 AND done = 1").isEmpty();
+        } catch (DataAccessException e) {
+            return false;
+        }
+    }
+
+    private void migrate() throws InterruptedException {
+        String source = VoucherOrderSharding.LOGIC_TABLE;
+        //1.建分表
+        for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + voucherOrderSharding.tableName(shard) + " LIKE " + source);
+        }
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + STATE_TABLE + " ("
+                + "id TINYINT NOT NULL PRIMARY KEY, "
+                + "last_id BIGINT NOT NULL DEFAULT 0, "
+                + "done TINYINT NOT NULL DEFAULT 0, "
+                + "update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)");
+        //2.从上次的进度开始
+        List<Long> progress = jdbcTemplate.queryForList(
+                "SELECT last_id FROM " + STATE_TABLE + " WHERE id = 1", Long.class);
+        long lastId = progress.isEmpty() ? 0 : progress.get(0);
+        long migrated = 0;
+        long begin = System.currentTimeMillis();
+        log.info("开始迁移订单到{}张分表，从id>{}开始", voucherOrderSharding.shards(), lastId);
+        while (true) {
+            //停机时中断，进度已经记下，下次启动继续
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            //2.1 按id分页读取一页
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                    "SELECT id, user_id FROM " + source + " WHERE id > ? ORDER BY id LIMIT ?", lastId, chunkSize);
+            if (rows.isEmpty()) {
+                break;
+            }
+            //2.2 按分表分组
+            Map<Integer, List<Long>> idsOfShard = new HashMap<>();
+            for (Map<String, Object> row : rows) {
+                long id = ((Number) row.get("id")).longValue();
+                long userId = ((Number) row.get("user_id")).longValue();
+                idsOfShard.computeIfAbsent(voucherOrderSharding.shardOf(userId), k -> new ArrayList<>()).add(id);
+            }
+            //2.3 每个分表一条 INSERT IGNORE ... SELECT
+            for (Map.Entry<Integer, List<Long>> entry : idsOfShard.entrySet()) {
+                jdbcTemplate.update("INSERT IGNORE INTO " + voucherOrderSharding.tableName(entry.getKey())
+                        + " SELECT * FROM " + source + " WHERE id IN (" + StrUtil.join(",", entry.getValue()) + ")");
+            }
+            //3.记录进度
+            lastId = ((Number) rows.get(rows.size() - 1).get("id")).longValue();
+            saveProgress(lastId, false);
+            migrated += rows.size();
+            if (migrated % (chunkSize * 100L) < chunkSize) {
+                log.info("已迁移订单{}条，id<={}", migrated, lastId);
+            }
+            if (!pause.isZero()) {
+                Thread.sleep(pause.toMillis());
+            }
+        }
+        //4.全部复制完成，其它节点据此开始重算库存和消费订单
+        saveProgress(lastId, true);
+        done = true;
+        log.info("订单迁移完成，本次迁移{}条，最后id={}，耗时{}ms", migrated, lastId, System.currentTimeMillis() - begin);
+    }
+
+    private void saveProgress(long lastId, boolean finished) {
+        jdbcTemplate.update("INSERT INTO " + STATE_TABLE + " (id, last_id, done) VALUES (1, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE last_id = VALUES(last_id), done = VALUES(done)", lastId, finished ? 1 : 0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lly.utils;
+
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Supplier;
+
+/*
+* tb_voucher_order按user_id水平分表：tb_voucher_order_0 ... tb_voucher_order_{N-1}
+* 要访问哪张物理表由线程变量决定，MyBatis-Plus的动态表名拦截器在执行SQL时替换表名
+* 一个用户的订单都在同一张表里，按用户查询只访问一张表；不带用户的查询需要自己遍历所有分表
+* 分表数为1时不分表，也不注册拦截器
+* */
+@Component
+public class VoucherOrderSharding {
+
+    public static final String LOGIC_TABLE = "tb_voucher_order";
+
+    @Value("${seckill.order.table-shards:1}")
+    private int shards;
+
+    //当前线程要访问的分表
+    private static final ThreadLocal<Integer> SHARD = new ThreadLocal<>();
+
+    public int shards() {
+        return Math.max(shards, 1);
+    }
+
+    public boolean isSharded() {
+        return shards > 1;
+    }
+
+    public int shardOf(Long userId) {
+        return Math.floorMod(userId, shards());
+    }
+
+    public String tableName(int shard) {
+        return LOGIC_TABLE + "_" + shard;
+    }
+
+    /**
+     * 在指定的分表上执行，执行完恢复之前的分表
+     */
+    public <T> T onShard(int shard, Supplier<T> action) {
+        Integer previous = SHARD.get();
+        SHARD.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                SHARD.remove();
+            } else {
+                SHARD.set(previous);
+            }
+        }
+    }
+
+    /**
+     * 在用户所在的分表上执行
+     */
+    public <T> T onUser(Long userId, Supplier<T> action) {
+        return onShard(shardOf(userId), action);
+    }
+
+    /**
+     * 动态表名拦截器用的处理器，没有指定分表就访问逻辑表是bug，直接报错
+     */
+    public TableNameHandler tableNameHandler() {
+        return (sql, tableName) -> {
+            Integer shard = SHARD.get();
+            if (shard == null) {
+                throw new IllegalStateException(LOGIC_TABLE + "已分表，需要先指定user_id所在的分表：" + sql);
+            }
+            return tableName(shard);
+        };
+    }
+}
@@ -0,0 +1,164 @@
+package com.lly.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.lly.dto.OrderStatusDTO;
+import com.lly.dto.Result;
+import com.lly.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static com.lly.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.lly.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/*
+* 秒杀订单的异步处理状态 order:status:{orderId}，值为 状态:userId[:失败原因]
+* QUEUED由seckill.lua和XADD一起写入，消费者创建订单后改为CREATED，进入死信队列改为FAILED
+* 状态变化后通过order:status频道广播订单id，各节点唤醒本地正在长轮询这个订单的请求
+* */
+@Component
+public class VoucherOrderStatus {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    //状态key不存在：订单id不对、不是这个用户的订单，或者状态已经过期
+    public static final String STATUS_NOT_FOUND = "订单状态不存在或已过期";
+
+    @Value("${seckill.order.status-ttl:30m}")
+    private Duration statusTtl;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //orderId -> 本节点正在等待这个订单状态变化的请求
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        Waiter(Long userId, DeferredResult<Result> result) {
+            this.userId = userId;
+            this.result = result;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String id : StrUtil.split(body, ',')) {
+                notifyWaiters(Long.valueOf(id));
+            }
+        }, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 状态的有效期（秒），seckill.lua写QUEUED时使用
+     */
+    public long ttlSeconds() {
+        return statusTtl.getSeconds();
+    }
+
+    /**
+     * 订单创建成功，一次pipeline写完一批状态，再广播一次
+     */
+    public void markCreated(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                connection.stringCommands().set(
+                        (ORDER_STATUS_KEY + voucherOrder.getId()).getBytes(StandardCharsets.UTF_8),
+                        (CREATED + ":" + voucherOrder.getUserId()).getBytes(StandardCharsets.UTF_8),
+                        Expiration.seconds(statusTtl.getSeconds()),
+                        RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        String ids = voucherOrders.stream().map(o -> o.getId().toString()).collect(Collectors.joining(","));
+        stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, ids);
+    }
+
+    /**
+     * 订单创建失败
+     */
+    public void markFailed(Long orderId, Long userId, String reason) {
+        stringRedisTemplate.opsForValue().set(ORDER_STATUS_KEY + orderId,
+                FAILED + ":" + userId + ":" + reason, statusTtl);
+        stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, orderId.toString());
+    }
+
+    /**
+     * 查询订单状态，不存在或者不是这个用户的订单返回null
+     */
+    public OrderStatusDTO query(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(":", 3);
+        if (!parts[1].equals(userId.toString())) {
+            return null;
+        }
+        return new OrderStatusDTO(orderId, parts[0], parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * 订单还在排队时挂起请求，状态变化或者超时后再返回
+     */
+    public void watch(Long orderId, Long userId, DeferredResult<Result> result) {
+        Waiter waiter = new Waiter(userId, result);
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(waiter);
+        result.onCompletion(() -> removeWaiter(orderId, waiter));
+        //超时返回当前状态，等待期间状态过期了按不存在返回
+        result.onTimeout(() -> result.setResult(toResult(query(orderId, userId))));
+        //注册之前状态可能已经变了，通知会错过，这里再查一次
+        OrderStatusDTO status = query(orderId, userId);
+        if (status != null && !QUEUED.equals(status.getStatus())) {
+            result.setResult(Result.ok(status));
+        }
+    }
+
+    private void removeWaiter(Long orderId, Waiter waiter) {
+        waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private void notifyWaiters(Long orderId) {
+        List<Waiter> list = waiters.remove(orderId);
+        if (list == null) {
+            return;
+        }
+        for (Waiter waiter : list) {
+            waiter.result.setResult(toResult(query(orderId, waiter.userId)));
+        }
+    }
+
+    private static Result toResult(OrderStatusDTO status) {
+        return status == null ? Result.fail(STATUS_NOT_FOUND) : Result.ok(status);
+    }
+}
@@ -0,0 +1,4 @@
+-- 一人一单由唯一索引兜底，订单消费者用 INSERT IGNORE 幂等写入，不再需要分布式锁和先查后插
+-- 执行前先确认没有重复数据：
+-- SELECT user_id, voucher_id, COUNT(*) FROM tb_voucher_order GROUP BY user_id, voucher_id HAVING COUNT(*) > 1;
+ALTER TABLE tb_voucher_order ADD UNIQUE KEY uk_user_voucher (user_id, voucher_id);
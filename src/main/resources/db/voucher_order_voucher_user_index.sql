@@ -0,0 +1,2 @@
+-- 秒杀对账按 voucher_id 过滤、按 user_id 排序分页读取订单，唯一索引uk_user_voucher是user_id在前用不上
+ALTER TABLE tb_voucher_order ADD INDEX idx_voucher_user (voucher_id, user_id);
@@ -0,0 +1,5 @@
+-- 续约：只有租约还是自己的才延长有效期
+if (redis.call('get',KEYS[1])==ARGV[1]) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
@@ -0,0 +1,9 @@
+-- 只增不减的数值：新值比现有的大才写入，不设过期时间
+-- KEYS[1] key
+-- ARGV[1] 新值
+local current = tonumber(redis.call('get',KEYS[1]))
+if (current == nil or current < tonumber(ARGV[1])) then
+    redis.call('set',KEYS[1],ARGV[1])
+    return 1
+end
+return 0
@@ -4,34 +4,79 @@
 --- DateTime: 2024/3/22 19:35
 ---
 -- 1.参数列表
--- 1.1 优惠卷id
+-- 脚本访问的key全部通过KEYS传入，不在脚本里拼接
+-- 1.1 库存key seckill:stock:<voucherId>
+local stockKey = KEYS[1]
+-- 1.2 订单key seckill:order:<voucherId>
+local orderKey = KEYS[2]
+-- 1.3 秒杀元数据 seckill:meta:<voucherId>
+local metaKey = KEYS[3]
+-- 1.4 订单消息写入的stream（按userId分区）
+local streamKey = KEYS[4]
+-- 1.5 订单状态 order:status:<orderId>
+local statusKey = KEYS[5]
+-- 1.6 客户端幂等键，没有带Idempotency-Key时不传
+local idempotencyKey = KEYS[6]
+-- 1.7 优惠卷id
 local voucherId = ARGV[1]
--- 1.2 用户id
+-- 1.8 用户id
 local userId = ARGV[2]
--- 1.3 订单id
+-- 1.9 订单id
 local orderId = ARGV[3]
+-- 1.10 订单状态的有效期（秒）
+local statusTtl = ARGV[4]
+-- 1.11 幂等键的有效期（秒）
+local idempotencyTtl = ARGV[5]
 
--- 2.数据key
--- 2.1 库存key
-local stockKey = 'seckill:stock:'..voucherId
--- 2.2 订单key
-local orderKey = 'seckill:order:'..voucherId
+-- 1.12 同一个幂等键已经执行过，不再执行，返回5，由调用方读取原来的结果
+if (idempotencyKey ~= nil and redis.call('exists', idempotencyKey) == 1) then
+    return 5
+end
+-- 1.13 返回结果的同时记下本次的结果和订单id，重试直接拿这个结果
+local function finish(r)
+    if (idempotencyKey ~= nil) then
+        redis.call('set', idempotencyKey, r..':'..orderId, 'EX', idempotencyTtl)
+    end
+    return r
+end
+
+-- 2.秒杀元数据：开始时间、结束时间，没有说明是老的秒杀券
+local meta = redis.call('hmget', metaKey, 'begin', 'end')
+local beginTime = tonumber(meta[1])
+local endTime = tonumber(meta[2])
 
 -- 3.脚本业务
+-- 3.0 判断秒杀时间，以Redis服务器时间为准
+if (beginTime ~= nil or endTime ~= nil) then
+    -- TIME是非确定性命令，后面还要写数据，老版本Redis需要按效果复制
+    redis.replicate_commands()
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (beginTime ~= nil and now < beginTime) then
+        -- 尚未开始，返回3
+        return finish(3)
+    end
+    if (endTime ~= nil and now > endTime) then
+        -- 已经结束，返回4
+        return finish(4)
+    end
+end
 -- 3.1 判断库存是否充足,redis get获取的是字符串，要转成number再比较
 if (tonumber(redis.call('get',stockKey))<=0) then
     -- 3.2 库存不足，返回1
-    return 1
+    return finish(1)
 end
 -- 3.2 判断用户是否下单 SISMEMBER
 if (redis.call('sismember',orderKey,userId)==1) then
     -- 3.3 存在，说明是重复下单，返回2
-    return 2
+    return finish(2)
 end
 -- 3.4 扣库存incrby stockKey -1
 redis.call("incrby",stockKey,-1)
 -- 3.5 下单，保存用户 sadd orderKey userId
 redis.call('sadd',orderKey,userId)
--- 3.6 发送消息到队列中,XADD stream.orders * k1 v1 k2 v2
-redis.call('XADD','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
-return 0
\ No newline at end of file
+-- 3.6 发送消息到队列中,XADD stream.orders.n * k1 v1 k2 v2
+redis.call('XADD',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+-- 3.7 订单状态：排队中，消费者创建订单后会改成CREATED
+redis.call('set',statusKey,'QUEUED:'..userId,'EX',statusTtl)
+return finish(0)
@@ -0,0 +1,69 @@
+-- 订单stream的统计信息，供保留策略、监控和背压使用
+-- KEYS[1] stream的key
+-- ARGV[1] 消费者组
+-- ARGV[2] 只能数出lag时（Redis 7之前）最多数到多少条，数满了说明lag不小于这个数
+-- 返回 {长度, pending数, lag(未投递条数), last-delivered-id, 最小pending id, lag是否数满了(0/1)}
+local streamKey = KEYS[1]
+local group = ARGV[1]
+local length = redis.call('XLEN', streamKey)
+if (length == 0 and redis.call('EXISTS', streamKey) == 0) then
+    return {0, 0, 0, '0-0', '', 0}
+end
+-- XINFO返回的是 name value name value ... 的数组
+local function toMap(array)
+    local map = {}
+    for i = 1, #array, 2 do
+        map[array[i]] = array[i + 1]
+    end
+    return map
+end
+-- 比较两个stream id，a < b 返回true
+local function idLess(a, b)
+    local aMs, aSeq = string.match(a, '(%d+)-(%d+)')
+    local bMs, bSeq = string.match(b, '(%d+)-(%d+)')
+    aMs, bMs = tonumber(aMs), tonumber(bMs)
+    if (aMs ~= bMs) then
+        return aMs < bMs
+    end
+    return tonumber(aSeq) < tonumber(bSeq)
+end
+-- 没有lag字段时估算：先用首尾id判断全部已投递、全部未投递这两种常见情况，中间的情况才数，最多数ARGV[2]条
+local function estimateLag(streamInfo, groupInfo, lastId)
+    -- Redis 7：lag为空但entries-read有值时可以直接相减
+    local added = streamInfo['entries-added']
+    local read = groupInfo['entries-read']
+    if (type(added) == 'number' and type(read) == 'number') then
+        return added - read, 0
+    end
+    if (not idLess(lastId, streamInfo['last-generated-id'])) then
+        return 0, 0
+    end
+    local first = streamInfo['first-entry']
+    if (type(first) == 'table' and idLess(lastId, first[1])) then
+        return length, 0
+    end
+    local limit = tonumber(ARGV[2])
+    -- 从lastId的下一个id开始数，'('开区间要Redis 6.2才支持
+    local ms, seq = string.match(lastId, '(%d+)-(%d+)')
+    local counted = #redis.call('XRANGE', streamKey, ms .. '-' .. (tonumber(seq) + 1), '+', 'COUNT', limit)
+    if (counted >= limit) then
+        return counted, 1
+    end
+    return counted, 0
+end
+local groups = redis.call('XINFO', 'GROUPS', streamKey)
+for _, g in ipairs(groups) do
+    local info = toMap(g)
+    if (info['name'] == group) then
+        local lastId = info['last-delivered-id']
+        local lag = info['lag']
+        local capped = 0
+        if (type(lag) ~= 'number') then
+            lag, capped = estimateLag(toMap(redis.call('XINFO', 'STREAM', streamKey)), info, lastId)
+        end
+        local summary = redis.call('XPENDING', streamKey, group)
+        return {length, info['pending'], lag, lastId, summary[2] or '', capped}
+    end
+end
+-- 消费者组还没建，全部都是未投递的
+return {length, 0, length, '0-0', '', 0}
@@ -0,0 +1,32 @@
+-- 令牌桶限流，整个集群共用一个桶
+-- 1.参数列表
+-- 1.1 桶的key
+local key = KEYS[1]
+-- 1.2 每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.3 桶容量（允许的突发请求数）
+local burst = tonumber(ARGV[2])
+
+-- 2.以Redis服务器时间为准，避免各节点时钟不一致；TIME是非确定性命令，按效果复制
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 3.按上次取令牌到现在的时间补充令牌
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or burst
+local ts = tonumber(bucket[2]) or now
+if (now > ts) then
+    tokens = math.min(burst, tokens + (now - ts) * rate / 1000)
+end
+
+-- 4.取一个令牌，桶空了返回0
+local allowed = 0
+if (tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+redis.call('hset', key, 'tokens', tostring(tokens), 'ts', tostring(now))
+-- 桶装满需要的时间之后没人访问就可以删掉，下次按满桶处理
+redis.call('pexpire', key, math.ceil(burst * 1000 / rate) + 1000)
+return allowed
@@ -0,0 +1,4 @@
+-- 删除stream中id小于ARGV[1]的消息，spring-data-redis只支持按MAXLEN裁剪
+-- KEYS[1] stream的key
+-- ARGV[1] 保留的最小id
+return redis.call('XTRIM', KEYS[1], 'MINID', ARGV[1])
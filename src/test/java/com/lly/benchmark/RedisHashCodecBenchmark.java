@@ -0,0 +1,73 @@
+package com.lly.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.lly.dto.UserDTO;
+import com.lly.entity.VoucherOrder;
+import com.lly.utils.RedisHashCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+* hutool反射拷贝和手写编解码的对比，不需要Redis，直接运行main
+* 带GC profiler，看gc.alloc.rate.norm（每次调用分配的字节数）
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisHashCodecBenchmark {
+
+    private Map<Object, Object> orderValues;
+    private Map<Object, Object> userValues;
+
+    @Setup
+    public void setup() {
+        //和stream.orders消息、login:token:{token}里的字段一致
+        orderValues = new HashMap<>();
+        orderValues.put("userId", "1010");
+        orderValues.put("voucherId", "10");
+        orderValues.put("id", "410718279069712385");
+        userValues = new HashMap<>();
+        userValues.put("id", "1010");
+        userValues.put("nickName", "user_k2w8zpd1p4");
+        userValues.put("icon", "/imgs/icons/kaixin.jpg");
+    }
+
+    @Benchmark
+    public VoucherOrder voucherOrderBeanUtil() {
+        return BeanUtil.fillBeanWithMap(orderValues, new VoucherOrder(), true);
+    }
+
+    @Benchmark
+    public VoucherOrder voucherOrderCodec() {
+        return RedisHashCodec.toVoucherOrder(orderValues);
+    }
+
+    @Benchmark
+    public UserDTO userBeanUtil() {
+        return BeanUtil.fillBeanWithMap(userValues, new UserDTO(), false);
+    }
+
+    @Benchmark
+    public UserDTO userCodec() {
+        return RedisHashCodec.toUserDTO(userValues);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisHashCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,246 @@
+package com.lly.loadtest;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.lly.dto.Result;
+import com.lly.dto.UserDTO;
+import com.lly.entity.Voucher;
+import com.lly.entity.VoucherOrder;
+import com.lly.service.ISeckillVoucherService;
+import com.lly.service.IVoucherOrderService;
+import com.lly.service.IVoucherService;
+import com.lly.utils.RedisConstants;
+import com.lly.utils.SeckillOrderStreams;
+import com.lly.utils.SeckillStockFlusher;
+import com.lly.utils.SeckillStreamMonitor;
+import com.lly.utils.VoucherOrderSharding;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/*
+* 秒杀链路压测，默认不执行，需要本机的Redis和MySQL：
+* mvn test -Dtest=SeckillLoadTest -Dseckill.loadtest=true -Dseckill.loadtest.users=1000 -Dseckill.loadtest.stock=100
+* 1.发布一张新的秒杀券，生成N个用户的token
+* 2.通过MockMvc走完整的拦截器和Controller并发秒杀，每个用户请求多次
+* 3.输出吞吐量、p50/p99/p999延迟，等待订单stream消费完，输出消费耗时
+* 4.校验没有超卖、没有一人多单，数据库库存和订单数一致
+* 结束后删除压测的秒杀券、订单、token和Redis里的库存、订单集合、订单状态
+* */
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("loadtest")
+@EnabledIfSystemProperty(named = "seckill.loadtest", matches = "true")
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("seckill.loadtest.users", 1000);
+    private static final int STOCK = Integer.getInteger("seckill.loadtest.stock", 100);
+    private static final int THREADS = Integer.getInteger("seckill.loadtest.threads", 200);
+    //每个用户发几次请求，大于1时会校验一人一单
+    private static final int REPEATS = Integer.getInteger("seckill.loadtest.repeats", 2);
+    private static final long DRAIN_TIMEOUT = Long.getLong("seckill.loadtest.drain-timeout", 60_000L);
+    //压测用户的id从这里开始，避免和真实用户混在一起
+    private static final long USER_ID_BASE = 900_000_000L;
+
+    @Resource
+    private MockMvc mockMvc;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+    @Resource
+    private SeckillStreamMonitor seckillStreamMonitor;
+    @Resource
+    private SeckillStockFlusher seckillStockFlusher;
+    @Resource
+    private VoucherOrderSharding voucherOrderSharding;
+
+    private static final long SHOP_ID = 1L;
+
+    private final List<String> tokens = new ArrayList<>();
+    private Long voucherId;
+
+    @Test
+    void seckill() throws Exception {
+        //1.准备秒杀券和用户
+        voucherId = publishVoucher();
+        for (int i = 0; i < USERS; i++) {
+            tokens.add(login(USER_ID_BASE + i));
+        }
+        List<String> requests = new ArrayList<>(USERS * REPEATS);
+        for (int r = 0; r < REPEATS; r++) {
+            requests.addAll(tokens);
+        }
+        Collections.shuffle(requests);
+
+        //2.并发秒杀
+        long[] latencies = new long[requests.size()];
+        AtomicInteger next = new AtomicInteger();
+        Map<String, AtomicInteger> outcomes = new ConcurrentHashMap<>();
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            es.submit(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests.size()) {
+                        long start = System.nanoTime();
+                        MvcResult mvcResult = mockMvc.perform(post("/voucher-order/seckill/{id}", voucherId)
+                                .header("authorization", requests.get(i))).andReturn();
+                        latencies[i] = System.nanoTime() - start;
+                        Result result = JSONUtil.toBean(
+                                mvcResult.getResponse().getContentAsString(StandardCharsets.UTF_8), Result.class);
+                        String outcome = Boolean.TRUE.equals(result.getSuccess()) ? "成功" : result.getErrorMsg();
+                        outcomes.computeIfAbsent(outcome, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    outcomes.computeIfAbsent("异常:" + e.getClass().getSimpleName(), k -> new AtomicInteger()).incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //3.等待订单stream消费完
+        long drainBegin = System.nanoTime();
+        boolean drained = waitForDrain();
+        long drainTime = System.nanoTime() - drainBegin;
+        seckillStockFlusher.flush();
+
+        //4.输出报告
+        Arrays.sort(latencies);
+        int success = outcomes.getOrDefault("成功", new AtomicInteger()).get();
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户=%d 库存=%d 请求=%d 线程=%d%n", USERS, STOCK, requests.size(), THREADS);
+        System.out.printf("吞吐量=%.1f req/s 耗时=%dms%n",
+                requests.size() * 1e9 / elapsed, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        System.out.printf("延迟 p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.out.println("结果=" + outcomes);
+        System.out.printf("stream消费耗时=%dms 是否消费完=%s%n", TimeUnit.NANOSECONDS.toMillis(drainTime), drained);
+
+        //5.校验：不超卖、一人一单、数据库库存和订单数一致
+        int orders = voucherOrderService.countVoucherOrders(voucherId);
+        //一个用户的订单只会在一个分表里，各分表的下单用户数相加即可
+        int users = 0;
+        for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+            users += voucherOrderSharding.onShard(shard, () -> voucherOrderService.query()
+                    .select("distinct user_id").eq("voucher_id", voucherId).list().size());
+        }
+        Integer stock = seckillVoucherService.getById(voucherId).getStock();
+        System.out.printf("订单数=%d 下单用户数=%d 数据库库存=%s%n", orders, users, stock);
+        assertTrue(drained, "订单stream没有在" + DRAIN_TIMEOUT + "ms内消费完");
+        assertTrue(success <= STOCK, "超卖：成功" + success + "单，库存" + STOCK);
+        assertEquals(success, orders, "成功的请求数和订单数不一致");
+        assertEquals(orders, users, "存在一人多单");
+        assertEquals(STOCK - orders, stock.intValue(), "数据库库存和订单数不一致");
+    }
+
+    @AfterEach
+    void cleanup() {
+        List<String> keys = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            keys.add(RedisConstants.LOGIN_USER_KEY + token);
+        }
+        if (voucherId != null) {
+            //先把没写回的库存扣减写完，再删数据库的数据
+            seckillStockFlusher.flush();
+            for (int shard = 0; shard < voucherOrderSharding.shards(); shard++) {
+                List<VoucherOrder> orders = voucherOrderSharding.onShard(shard, () -> voucherOrderService.query()
+                        .select("id").eq("voucher_id", voucherId).list());
+                for (VoucherOrder order : orders) {
+                    keys.add(RedisConstants.ORDER_STATUS_KEY + order.getId());
+                }
+                voucherOrderSharding.onShard(shard, () -> voucherOrderService.remove(
+                        new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId)));
+            }
+            seckillVoucherService.removeById(voucherId);
+            voucherService.removeById(voucherId);
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_META_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_LIMIT_KEY + voucherId);
+            keys.add(RedisConstants.CACHE_VOUCHER_KEY + SHOP_ID);
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    private Long publishVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(SHOP_ID);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private String login(Long userId) {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(userId);
+        userDTO.setNickName("loadtest_" + userId);
+        String token = UUID.randomUUID().toString(true);
+        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
+                CopyOptions.create().ignoreNullValue()
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+        String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
+        stringRedisTemplate.opsForHash().putAll(tokenKey, userMap);
+        stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        return token;
+    }
+
+    private boolean waitForDrain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            long backlog = 0;
+            for (String streamKey : seckillOrderStreams.streamKeys()) {
+                backlog += seckillStreamMonitor.stats(streamKey).getBacklog();
+            }
+            if (backlog == 0) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,111 @@
+package com.lly.service.impl;
+
+import com.lly.entity.SeckillVoucher;
+import com.lly.mapper.VoucherMapper;
+import com.lly.service.IVoucherOrderService;
+import com.lly.utils.SeckillLocalState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.lly.utils.RedisConstants.SECKILL_META_KEY;
+import static com.lly.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+* 秒杀预热重建Redis里的库存和总库存，Redis和订单数都用mock模拟
+* */
+class VoucherServiceWarmUpTest {
+
+    private static final long VOUCHER_ID = 7L;
+
+    //模拟Redis：seckill:stock:{id}和seckill:meta:{id}
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<Object, Object> meta = new HashMap<>();
+
+    private IVoucherOrderService voucherOrderService;
+
+    private VoucherServiceImpl voucherService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        doAnswer(invocation -> values.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOps).set(anyString(), anyString());
+        HashOperations<String, Object, Object> hashOps = mock(HashOperations.class);
+        doAnswer(invocation -> {
+            meta.putAll(invocation.getArgument(1));
+            return null;
+        }).when(hashOps).putAll(anyString(), anyMap());
+        when(hashOps.putIfAbsent(anyString(), any(), any()))
+                .thenAnswer(invocation -> meta.putIfAbsent(invocation.getArgument(1), invocation.getArgument(2)) == null);
+        when(hashOps.get(anyString(), any())).thenAnswer(invocation -> meta.get(invocation.getArgument(1)));
+        when(hashOps.hasKey(anyString(), any())).thenAnswer(invocation -> meta.containsKey(invocation.getArgument(1)));
+
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        when(template.<Object, Object>opsForHash()).thenReturn(hashOps);
+        when(template.hasKey(SECKILL_STOCK_KEY + VOUCHER_ID)).thenAnswer(invocation -> values.containsKey(SECKILL_STOCK_KEY + VOUCHER_ID));
+        when(template.hasKey(SECKILL_META_KEY + VOUCHER_ID)).thenAnswer(invocation -> !meta.isEmpty());
+
+        voucherOrderService = mock(IVoucherOrderService.class);
+        voucherService = new VoucherServiceImpl();
+        ReflectionTestUtils.setField(voucherService, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(voucherService, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(voucherService, "seckillLocalState", mock(SeckillLocalState.class));
+        ReflectionTestUtils.setField(voucherService, "baseMapper", mock(VoucherMapper.class));
+    }
+
+    private static SeckillVoucher seckillVoucher(int stock) {
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        return voucher;
+    }
+
+    @Test
+    void rebuildsTotalFromStockAndOrdersAfterRedisFlush() {
+        //发布100张，卖出20张后Redis被清空，数据库剩80
+        when(voucherOrderService.countVoucherOrders(VOUCHER_ID)).thenReturn(20);
+        voucherService.warmUpSeckillVoucher(seckillVoucher(80));
+        assertEquals("100", meta.get("total"));
+        assertEquals("80", values.get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    @Test
+    void keepsExistingTotalWhenStockKeyIsMissing() {
+        //total还在，数据库库存还没刷盘（落后5张），Redis库存按 total - 订单数 算
+        meta.put("total", "100");
+        when(voucherOrderService.countVoucherOrders(VOUCHER_ID)).thenReturn(20);
+        voucherService.warmUpSeckillVoucher(seckillVoucher(85));
+        assertEquals("100", meta.get("total"));
+        assertEquals("80", values.get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    @Test
+    void fillsMissingTotalWithoutTouchingStock() {
+        //老的秒杀券：库存和元数据都在，只是没有total
+        values.put(SECKILL_STOCK_KEY + VOUCHER_ID, "80");
+        meta.put("begin", "0");
+        when(voucherOrderService.countVoucherOrders(VOUCHER_ID)).thenReturn(20);
+        voucherService.warmUpSeckillVoucher(seckillVoucher(80));
+        assertEquals("100", meta.get("total"));
+        assertEquals("80", values.get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+}
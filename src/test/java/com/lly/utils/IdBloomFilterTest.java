@@ -0,0 +1,63 @@
+package com.lly.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+* IdBloomFilter不依赖Spring和Redis，直接new出来测
+* */
+class IdBloomFilterTest {
+
+    private static final long EXPECTED_INSERTIONS = 100000;
+
+    private static final double FPP = 0.01;
+
+    @Test
+    void noFalseNegatives() {
+        IdBloomFilter filter = new IdBloomFilter(EXPECTED_INSERTIONS, FPP);
+        //连续的id和间隔很大的id都要覆盖，0也要能加
+        for (long id = 0; id < EXPECTED_INSERTIONS / 2; id++) {
+            filter.add(id);
+        }
+        for (long i = 0; i < EXPECTED_INSERTIONS / 2; i++) {
+            filter.add(Long.MAX_VALUE - i * 7919);
+        }
+        for (long id = 0; id < EXPECTED_INSERTIONS / 2; id++) {
+            assertTrue(filter.mightContain(id), "加入过的id被判断为不存在 id=" + id);
+        }
+        for (long i = 0; i < EXPECTED_INSERTIONS / 2; i++) {
+            long id = Long.MAX_VALUE - i * 7919;
+            assertTrue(filter.mightContain(id), "加入过的id被判断为不存在 id=" + id);
+        }
+        assertEquals(EXPECTED_INSERTIONS, filter.insertions());
+    }
+
+    @Test
+    void falsePositiveRateNearConfigured() {
+        IdBloomFilter filter = new IdBloomFilter(EXPECTED_INSERTIONS, FPP);
+        for (long id = 1; id <= EXPECTED_INSERTIONS; id++) {
+            filter.add(id);
+        }
+        //用没加入过的id统计误判率，样本10万条，标准差约0.0003
+        long probes = 100000;
+        long falsePositives = 0;
+        for (long id = 1000000000L; id < 1000000000L + probes; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double observed = (double) falsePositives / probes;
+        assertTrue(observed > FPP * 0.5 && observed < FPP * 1.5, "实际误判率" + observed);
+        assertEquals(FPP, filter.expectedFpp(), FPP * 0.2);
+    }
+
+    @Test
+    void rejectsIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new IdBloomFilter(0, FPP));
+        assertThrows(IllegalArgumentException.class, () -> new IdBloomFilter(EXPECTED_INSERTIONS, 0));
+        assertThrows(IllegalArgumentException.class, () -> new IdBloomFilter(EXPECTED_INSERTIONS, 1));
+    }
+}
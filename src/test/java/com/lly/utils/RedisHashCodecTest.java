@@ -0,0 +1,62 @@
+package com.lly.utils;
+
+import com.lly.dto.UserDTO;
+import com.lly.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+* 手写的Redis Hash编解码，和原来BeanUtil的字段名保持一致
+* */
+class RedisHashCodecTest {
+
+    @Test
+    void decodesVoucherOrderFromStreamFields() {
+        Map<Object, Object> values = new HashMap<>();
+        values.put("id", "123456789012");
+        values.put("userId", "1010");
+        values.put("voucherId", 7L);
+        //不认识的字段忽略
+        values.put("unknown", "x");
+        VoucherOrder voucherOrder = RedisHashCodec.toVoucherOrder(values);
+        assertEquals(123456789012L, voucherOrder.getId());
+        assertEquals(1010L, voucherOrder.getUserId());
+        assertEquals(7L, voucherOrder.getVoucherId());
+        assertNull(voucherOrder.getStatus());
+    }
+
+    @Test
+    void userDtoRoundTrip() {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(1L);
+        userDTO.setNickName("user_abc");
+        userDTO.setIcon("/imgs/icons/a.jpg");
+        Map<String, String> values = RedisHashCodec.fromUserDTO(userDTO);
+        assertEquals("1", values.get("id"));
+        assertEquals("user_abc", values.get("nickName"));
+        assertEquals("/imgs/icons/a.jpg", values.get("icon"));
+        assertEquals(userDTO, RedisHashCodec.toUserDTO(values));
+    }
+
+    @Test
+    void skipsNullFields() {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(2L);
+        Map<String, String> values = RedisHashCodec.fromUserDTO(userDTO);
+        assertEquals(1, values.size());
+        assertFalse(values.containsKey("icon"));
+
+        Map<Object, Object> withNull = new HashMap<>();
+        withNull.put("id", "2");
+        withNull.put("nickName", null);
+        UserDTO decoded = RedisHashCodec.toUserDTO(withNull);
+        assertEquals(2L, decoded.getId());
+        assertNull(decoded.getNickName());
+    }
+}
@@ -0,0 +1,99 @@
+package com.lly.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/*
+* RedisIdWorker的号段分配，INCRBY用mock模拟，不需要Redis
+* */
+class RedisIdWorkerSegmentTest {
+
+    private static final int SEGMENT_SIZE = 10;
+
+    private static final long COUNT_MASK = (1L << 32) - 1;
+
+    //模拟Redis上的icr计数器
+    private final AtomicLong counter = new AtomicLong();
+
+    private ValueOperations<String, String> ops;
+
+    @SuppressWarnings("unchecked")
+    private RedisIdWorker worker() {
+        ops = mock(ValueOperations.class);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> counter.addAndGet(invocation.<Long>getArgument(1)));
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.opsForValue()).thenReturn(ops);
+        RedisIdWorker worker = new RedisIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(worker, "segmentSize", SEGMENT_SIZE);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.8);
+        return worker;
+    }
+
+    @Test
+    void allocatesSequentiallyAcrossSegments() {
+        RedisIdWorker worker = worker();
+        int n = SEGMENT_SIZE * 5 + 3;
+        for (int i = 1; i <= n; i++) {
+            //单线程下序列号从1开始连续，号段切换不跳号
+            assertEquals(i, worker.nextId("order") & COUNT_MASK);
+        }
+        //每个号段一次INCRBY，最多再多一次预取
+        verify(ops, atLeast(6)).increment(anyString(), anyLong());
+        verify(ops, atMost(7)).increment(anyString(), anyLong());
+    }
+
+    @Test
+    void idsAreUniqueUnderConcurrency() throws Exception {
+        RedisIdWorker worker = worker();
+        int threads = 8;
+        int perThread = 2000;
+        Set<Long> counts = ConcurrentHashMap.newKeySet();
+        List<Long> duplicates = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                futures[t] = executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        long count = worker.nextId("order") & COUNT_MASK;
+                        if (!counts.add(count)) {
+                            duplicates.add(count);
+                        }
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(duplicates.isEmpty(), "重复的序列号 " + duplicates);
+        assertEquals(threads * perThread, counts.size());
+        //发出去的序列号都来自INCRBY拿到的号段
+        assertTrue(counter.get() >= threads * perThread);
+    }
+}
@@ -0,0 +1,126 @@
+package com.lly.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+* 雪花算法的时钟回拨处理，时钟用timeGen覆盖，机器号直接指定，不需要Redis
+* */
+class SnowflakeIdGeneratorTest {
+
+    //开始时间之后的某个时刻
+    private static final long NOW = 1704067200000L + 1_000_000L;
+
+    /*
+    * 按顺序返回给定的时间，用完之后一直返回最后一个
+    * */
+    private static class FakeClockGenerator extends SnowflakeIdGenerator {
+        private final Deque<Long> times = new ArrayDeque<>();
+        private long last;
+
+        void then(Long... next) {
+            times.addAll(Arrays.asList(next));
+        }
+
+        @Override
+        long timeGen() {
+            if (!times.isEmpty()) {
+                last = times.poll();
+            }
+            return last;
+        }
+    }
+
+    private static FakeClockGenerator generator() {
+        FakeClockGenerator generator = new FakeClockGenerator();
+        ReflectionTestUtils.setField(generator, "workerId", 7);
+        ReflectionTestUtils.setField(generator, "leaseExpireAt", Long.MAX_VALUE);
+        ReflectionTestUtils.setField(generator, "maxBackward", Duration.ofMillis(5));
+        return generator;
+    }
+
+    private static long timestampOf(long id) {
+        return (id >>> 22) & ((1L << 40) - 1);
+    }
+
+    private static long rollbackOf(long id) {
+        return (id >>> 21) & 1;
+    }
+
+    private static long workerOf(long id) {
+        return (id >>> 12) & ((1L << 9) - 1);
+    }
+
+    @Test
+    void layoutKeepsSnowflakeFlag() {
+        FakeClockGenerator generator = generator();
+        generator.then(NOW);
+        long id = generator.nextId("order");
+        //第62位固定为1，比RedisIdWorker的id都大
+        assertEquals(1L << 62, id & (1L << 62));
+        assertTrue(id > 0);
+        assertEquals(NOW - 1704067200000L, timestampOf(id));
+        assertEquals(7, workerOf(id));
+        assertEquals(0, rollbackOf(id));
+    }
+
+    @Test
+    void smallRollbackWaitsForClock() {
+        FakeClockGenerator generator = generator();
+        //回拨2ms，等待后时钟已经追上
+        generator.then(NOW, NOW - 2, NOW + 1);
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+        assertEquals(0, rollbackOf(second));
+        assertEquals(NOW + 1 - 1704067200000L, timestampOf(second));
+        assertTrue(second > first);
+    }
+
+    @Test
+    void largeRollbackFlipsRollbackBitOnce() {
+        FakeClockGenerator generator = generator();
+        //回拨1秒，超过max-backward，翻转回拨位继续发号
+        generator.then(NOW, NOW - 1000, NOW - 1000);
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+        assertEquals(1, rollbackOf(second));
+        assertEquals(NOW - 1000 - 1704067200000L, timestampOf(second));
+        assertNotEquals(first, second);
+        //同一毫秒内序列号继续递增
+        long third = generator.nextId("order");
+        assertEquals(second + 1, third);
+        //回拨位已经用过，再回拨只能拒绝
+        generator.then(NOW - 2000, NOW - 2000);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    @Test
+    void largeRollbackIntoPreviousOwnerRangeIsRejected() {
+        FakeClockGenerator generator = generator();
+        //机器号上一个持有者发出的id时间戳到NOW - 500，回拨到这之前不能翻转回拨位
+        ReflectionTestUtils.setField(generator, "inheritedUntil", NOW - 500);
+        generator.then(NOW, NOW - 1000, NOW - 1000);
+        generator.nextId("order");
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        //回拨位没有被占用，时钟恢复后照常发号
+        generator.then(NOW + 1);
+        assertEquals(0, rollbackOf(generator.nextId("order")));
+    }
+
+    @Test
+    void rejectsWithoutLease() {
+        FakeClockGenerator generator = generator();
+        ReflectionTestUtils.setField(generator, "workerId", -1);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+}
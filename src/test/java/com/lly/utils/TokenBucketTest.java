@@ -0,0 +1,46 @@
+package com.lly.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+* 本地令牌桶的补充计算，时间从外面传入，不依赖真实时钟
+* */
+class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void startsFullAndRejectsWhenEmpty() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, 3, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+    }
+
+    @Test
+    void refillsByElapsedTime() {
+        //每秒10个，100ms补充一个
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, 1, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(50_000_000L));
+        //0.5个 + 0.6个 攒够一个，上一次不足一个的部分不能丢
+        assertTrue(bucket.tryAcquire(110_000_000L));
+        assertFalse(bucket.tryAcquire(110_000_000L));
+    }
+
+    @Test
+    void refillIsCappedAtBurst() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, 2, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        //空闲很久也最多攒burst个
+        long now = 60 * SECOND;
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+}
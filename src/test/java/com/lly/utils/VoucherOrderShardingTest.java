@@ -0,0 +1,67 @@
+package com.lly.utils;
+
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+* 订单分表的路由，不需要数据库
+* */
+class VoucherOrderShardingTest {
+
+    private static VoucherOrderSharding sharding(int shards) {
+        VoucherOrderSharding sharding = new VoucherOrderSharding();
+        ReflectionTestUtils.setField(sharding, "shards", shards);
+        return sharding;
+    }
+
+    @Test
+    void routesByUserIdModulo() {
+        VoucherOrderSharding sharding = sharding(4);
+        assertTrue(sharding.isSharded());
+        assertEquals(0, sharding.shardOf(8L));
+        assertEquals(3, sharding.shardOf(1011L));
+        //负数也要落在 [0, shards) 里
+        assertEquals(3, sharding.shardOf(-1L));
+        assertEquals("tb_voucher_order_3", sharding.tableName(sharding.shardOf(1011L)));
+    }
+
+    @Test
+    void notShardedWhenOneOrLess() {
+        assertFalse(sharding(1).isSharded());
+        assertFalse(sharding(0).isSharded());
+        assertEquals(1, sharding(0).shards());
+        assertEquals(0, sharding(0).shardOf(12345L));
+    }
+
+    @Test
+    void handlerUsesCurrentShardAndRestoresPrevious() {
+        VoucherOrderSharding sharding = sharding(4);
+        TableNameHandler handler = sharding.tableNameHandler();
+        String outer = sharding.onShard(1, () -> {
+            //嵌套执行完要恢复外层的分表
+            String inner = sharding.onUser(6L, () -> handler.dynamicTableName("select", VoucherOrderSharding.LOGIC_TABLE));
+            assertEquals("tb_voucher_order_2", inner);
+            return handler.dynamicTableName("select", VoucherOrderSharding.LOGIC_TABLE);
+        });
+        assertEquals("tb_voucher_order_1", outer);
+        //出来之后没有分表，访问逻辑表要报错
+        assertThrows(IllegalStateException.class,
+                () -> handler.dynamicTableName("select", VoucherOrderSharding.LOGIC_TABLE));
+    }
+
+    @Test
+    void shardIsClearedWhenActionThrows() {
+        VoucherOrderSharding sharding = sharding(4);
+        assertThrows(RuntimeException.class, () -> sharding.onShard(2, () -> {
+            throw new RuntimeException("boom");
+        }));
+        assertThrows(IllegalStateException.class,
+                () -> sharding.tableNameHandler().dynamicTableName("select", VoucherOrderSharding.LOGIC_TABLE));
+    }
+}